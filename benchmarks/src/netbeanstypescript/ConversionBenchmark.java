@@ -0,0 +1,84 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.netbeans.modules.csl.api.ColoringAttributes;
+import org.netbeans.modules.csl.api.OffsetRange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning decoded server results into what CSL displays: semantic highlights, and navigator
+ * items both from scratch and when the previous structure can be reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ConversionBenchmark {
+
+    @Param({ "40", "800" })
+    int classes;
+
+    JSONObject highlights;
+    Object structure;
+    final TSStructureScanner scanner = new TSStructureScanner();
+    List<TSStructureScanner.TSStructureItem> lastItems;
+
+    @Setup
+    public void setup() throws ParseException {
+        // About 1000 characters per class in the fixture source
+        highlights = (JSONObject) JSONValue.parseWithException(Fixtures.highlightsJSON(classes * 100));
+        structure = JSONValue.parseWithException(Fixtures.structureJSON(classes));
+        lastItems = scanner.convertStructureItems(null, null, structure,
+                Collections.<TSStructureScanner.TSStructureItem>emptyList());
+    }
+
+    @Benchmark
+    public Map<OffsetRange, Set<ColoringAttributes>> semanticHighlights() {
+        return TSSemanticAnalyzer.convertHighlights(highlights);
+    }
+
+    @Benchmark
+    public List<TSStructureScanner.TSStructureItem> structureItems() {
+        return scanner.convertStructureItems(null, null, structure,
+                Collections.<TSStructureScanner.TSStructureItem>emptyList());
+    }
+
+    @Benchmark
+    public List<TSStructureScanner.TSStructureItem> structureItemsUnchanged() {
+        return scanner.convertStructureItems(null, null, structure, lastItems);
+    }
+}
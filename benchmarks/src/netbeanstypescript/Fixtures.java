@@ -0,0 +1,216 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Inputs for the benchmarks: a large TypeScript source, and server responses of the size a file
+ * like that gets. Set the nbts.bench.source system property to use a real file instead of the
+ * generated source.
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    // One class of about 25 lines, with the constructs the lexer has to tell apart: doc comments,
+    // nested template substitutions, regexps versus division, escapes and generics.
+    private static final String CLASS_TEMPLATE =
+            "/**\n" +
+            " * Keeps track of the {@link Item#N} entries shown in a view.\n" +
+            " * @param <T> the type of the items\n" +
+            " * @deprecated use {@link Store#N} instead\n" +
+            " */\n" +
+            "export class Model#N<T extends { id: number }> extends Base implements Listener {\n" +
+            "    private readonly items: Map<number, T> = new Map();\n" +
+            "    static pattern = /^item-(\\d+)\\/[a-z]+$/gi;\n" +
+            "    constructor(public name: string, protected ratio = 1 / 3) { super(); }\n" +
+            "    // Returns the label shown for the item\n" +
+            "    label(item: T, index: number): string {\n" +
+            "        const half = index / 2, rest = this.items.size / half;\n" +
+            "        return `${this.name}: ${item.id} of ${rest > 1 ? `many (${rest})` : 'one'}`;\n" +
+            "    }\n" +
+            "    async load(ids: number[]): Promise<T[]> {\n" +
+            "        const found = ids.filter(id => this.items.has(id)).map(id => this.items.get(id)!);\n" +
+            "        if (found.length !== ids.length && !Model#N.pattern.test(this.name)) {\n" +
+            "            throw new Error(\"missing \\\"items\\\" in \" + this.name);\n" +
+            "        }\n" +
+            "        return await Promise.resolve(found);\n" +
+            "    }\n" +
+            "    /* block comment with a / and a * inside */\n" +
+            "    get size() { return this.items.size; }\n" +
+            "}\n" +
+            "\n";
+    private static final int TEMPLATE_LINES = 25;
+
+    static String typeScriptSource(int lines) throws IOException {
+        String path = System.getProperty("nbts.bench.source");
+        if (path != null) {
+            return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i * TEMPLATE_LINES < lines; i++) {
+            sb.append(CLASS_TEMPLATE.replace("#N", Integer.toString(i)));
+        }
+        return sb.toString();
+    }
+
+    // The doc comments of the source, each of which the editor lexes as its own embedding
+    static List<String> docComments(String source) {
+        List<String> comments = new ArrayList<>();
+        for (int start = source.indexOf("/**"); start >= 0; start = source.indexOf("/**", start + 3)) {
+            int end = source.indexOf("*/", start + 3);
+            if (end < 0) {
+                break;
+            }
+            comments.add(source.substring(start, end + 2));
+        }
+        return comments;
+    }
+
+    static String completionsJSON(int count) {
+        JSONArray entries = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("name", "member" + i);
+            entry.put("kind", i % 3 == 0 ? "property" : "method");
+            entry.put("kindModifiers", i % 5 == 0 ? "private" : "public");
+            entry.put("sortText", "0");
+            entries.add(entry);
+        }
+        JSONObject res = new JSONObject();
+        res.put("isMemberCompletion", true);
+        res.put("isNewIdentifierLocation", false);
+        res.put("entries", entries);
+        return res.toJSONString();
+    }
+
+    static String referencesJSON(int count) {
+        JSONArray refs = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject span = new JSONObject();
+            span.put("start", i * 97 % 50000);
+            span.put("length", 12);
+            JSONObject ref = new JSONObject();
+            ref.put("fileName", "/home/user/project/src/module" + (i % 40) + ".ts");
+            ref.put("textSpan", span);
+            ref.put("isWriteAccess", i % 7 == 0);
+            ref.put("isDefinition", i == 0);
+            refs.add(ref);
+        }
+        return refs.toJSONString();
+    }
+
+    // As sent by getSemanticHighlights with packed set: zigzag start deltas, lengths and flags
+    static String highlightsJSON(int count) {
+        String[] attrs = { "DEPRECATED", "FIELD", "GLOBAL", "UNDEFINED", "CUSTOM2", "METHOD", "CLASS", "UNUSED" };
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            int delta = 7 + i % 40;
+            writeVarint(packed, delta << 1);
+            writeVarint(packed, 3 + i % 12);
+            writeVarint(packed, i % 11 == 0 ? 0x21 : 1 << (i % 8));
+        }
+        JSONArray attrNames = new JSONArray();
+        for (String attr: attrs) {
+            attrNames.add(attr);
+        }
+        JSONObject res = new JSONObject();
+        res.put("attrs", attrNames);
+        res.put("packed", Base64.getEncoder().encodeToString(packed.toByteArray()));
+        return res.toJSONString();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Navigator items for a file of the given number of classes, each with a few members
+    static String structureJSON(int classes) {
+        JSONArray items = new JSONArray();
+        int pos = 0;
+        for (int i = 0; i < classes; i++) {
+            JSONArray children = new JSONArray();
+            String[][] members = {
+                { "items", "property", "private" }, { "pattern", "property", "static" },
+                { "constructor", "constructor", "" }, { "label", "method", "" },
+                { "load", "method", "async" }, { "size", "getter", "" }
+            };
+            int classStart = pos;
+            for (String[] member: members) {
+                pos += 60;
+                children.add(structureItem(member[0], member[1], member[2], pos, pos + 40, new JSONArray()));
+            }
+            pos += 100;
+            JSONObject item = structureItem("Model" + i, "class", "export", classStart, pos, children);
+            item.put("extends", "Base");
+            items.add(item);
+        }
+        return items.toJSONString();
+    }
+
+    private static JSONObject structureItem(String name, String kind, String kindModifiers, int start, int end,
+            JSONArray children) {
+        JSONObject item = new JSONObject();
+        item.put("name", name);
+        item.put("kind", kind);
+        item.put("kindModifiers", kindModifiers);
+        item.put("start", start);
+        item.put("end", end);
+        item.put("hasDetails", true);
+        item.put("children", children);
+        return item;
+    }
+
+    /**
+     * Formatting edits like those for a file indented with 2 spaces instead of 4: one edit at the
+     * start of every line that needs it, in document order.
+     */
+    static List<JSONObject> reindentEdits(String source, int maxEdits) {
+        List<JSONObject> edits = new ArrayList<>();
+        for (int lineStart = 0; lineStart < source.length() && edits.size() < maxEdits; ) {
+            int indent = 0;
+            while (lineStart + indent < source.length() && source.charAt(lineStart + indent) == ' ') {
+                indent++;
+            }
+            if (indent > 0) {
+                JSONObject span = new JSONObject();
+                span.put("start", (long) lineStart);
+                span.put("length", (long) indent);
+                JSONObject edit = new JSONObject();
+                edit.put("span", span);
+                edit.put("newText", source.substring(lineStart, lineStart + indent / 2));
+                edits.add(edit);
+            }
+            int next = source.indexOf('\n', lineStart);
+            lineStart = next < 0 ? source.length() : next + 1;
+        }
+        return edits;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.BadLocationException;
+import org.json.simple.JSONObject;
+import org.netbeans.editor.BaseDocument;
+import org.netbeans.modules.csl.api.OffsetRange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TSFormatter#applyEdits} on a plain document, with few enough edits to be applied one by
+ * one and with enough to take the wholesale path. Each invocation starts from a fresh document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FormatterBenchmark {
+
+    @Param({ "20", "5000" })
+    int edits;
+
+    String source;
+    List<JSONObject> editList;
+    BaseDocument doc;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Fixtures.typeScriptSource(10000);
+        editList = Fixtures.reindentEdits(source, edits);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetDocument() throws BadLocationException {
+        doc = new BaseDocument(false, "text/plain");
+        doc.insertString(0, source, null);
+    }
+
+    @Benchmark
+    public OffsetRange applyEdits() throws BadLocationException {
+        return TSFormatter.applyEdits(doc, editList);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import netbeanstypescript.lexer.api.JsDocumentationTokenId;
+import netbeanstypescript.lexer.api.JsTokenId;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenId;
+import org.netbeans.api.lexer.TokenSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tokenizing a whole file, as the editor does when it's opened, with {@link TSLexer} and with
+ * the lexer for doc comment embeddings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LexerBenchmark {
+
+    @Param({ "1000", "20000" })
+    int lines;
+
+    String source;
+    List<String> docComments;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Fixtures.typeScriptSource(lines);
+        docComments = Fixtures.docComments(source);
+    }
+
+    private static <T extends TokenId> int countTokens(CharSequence text, Language<T> language) {
+        TokenSequence<T> ts = TokenHierarchy.create(text, language).tokenSequence(language);
+        int count = 0;
+        while (ts.moveNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int tsLexer() {
+        return countTokens(source, JsTokenId.javascriptLanguage());
+    }
+
+    @Benchmark
+    public int jsDocumentationLexer() {
+        int count = 0;
+        for (String comment: docComments) {
+            count += countTokens(comment, JsDocumentationTokenId.language());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Both directions of the nbts-services protocol: encoding a file's text into a call, as every
+ * updateFile does, and decoding typical responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ProtocolBenchmark {
+
+    @Param({ "1000", "20000" })
+    int lines;
+
+    String source;
+    String completions, references, highlights;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Fixtures.typeScriptSource(lines);
+        // Response sizes scale with the file: a highlight every 10 characters or so
+        completions = Fixtures.completionsJSON(500);
+        references = Fixtures.referencesJSON(lines / 10);
+        highlights = Fixtures.highlightsJSON(source.length() / 10);
+    }
+
+    @Benchmark
+    public int stringToJS() {
+        StringBuilder sb = new StringBuilder("updateFile(");
+        TSServiceProcess.stringToJS(sb, source);
+        return sb.length();
+    }
+
+    @Benchmark
+    public Object decodeCompletions() throws ParseException {
+        return JSONValue.parseWithException(completions);
+    }
+
+    @Benchmark
+    public Object decodeReferences() throws ParseException {
+        return JSONValue.parseWithException(references);
+    }
+
+    @Benchmark
+    public Object decodeHighlights() throws ParseException {
+        return JSONValue.parseWithException(highlights);
+    }
+}
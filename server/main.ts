@@ -19,15 +19,32 @@
 // Node.js stuff
 declare var global: any;
 declare var require: any;
-declare module process { var stdin: any, stdout: any; }
+declare module process { var stdin: any, stdout: any; function memoryUsage(): { heapUsed: number }; }
 declare class Set<T> { add(t: T): void; has(t: T): boolean; }
+declare var Buffer: any;
+declare function setInterval(callback: () => void, ms: number): any;
+declare function clearInterval(timer: any): void;
+declare var __filename: string;
 
 var version = 0;
+var startTime = Date.now();
 var files: {[name: string]: {version: string; snapshot: SnapshotImpl}} = {};
 var builtinLibs: {[name: string]: string};
 var keywordLengthMap: {[id: string]: number};
 var docRegistry: ts.DocumentRegistry;
 
+// Script versions are hashes of the text when TS can compute them, as tsc does for incremental
+// builds, so a version means the same thing in another session or in a .tsbuildinfo file.
+// Before TS is loaded, and on versions without ts.sys.createHash, they're just unique numbers.
+function textVersion(text: string) {
+    return global.ts && ts.sys.createHash ? ts.sys.createHash(text) : String(version);
+}
+
+// Attribute names for semantic highlights; a highlight's flags has bit i set for highlightAttrs[i]
+const highlightAttrs = ['DEPRECATED', 'FIELD', 'GLOBAL', 'UNDEFINED', 'CUSTOM2', 'METHOD', 'CLASS', 'UNUSED'];
+const highlightAttrBits: {[attr: string]: number} = {};
+highlightAttrs.forEach((attr, i) => { highlightAttrBits[attr] = 1 << i; });
+
 var implicitAnyErrors: {[code: number]: boolean} = {};
 [[2602, 2602], [7000, 7026], [7031, 7034], [7051, 7055]].forEach(([lo, hi]) => {
     for (var code = lo; code <= hi; code++) {
@@ -36,12 +53,7 @@ var implicitAnyErrors: {[code: number]: boolean} = {};
 });
 
 class HostImpl implements ts.LanguageServiceHost {
-    cachedConfig: {
-        parseError: ts.Diagnostic;
-        pcl: ts.ParsedCommandLine;
-        raw: any;
-        settings: ts.CompilerOptions;
-    } = null;
+    cachedConfig: ParsedConfig = null;
     constructor(public path: string, public isConfig: boolean) {}
     log(s: string) {
         process.stdout.write('L' + JSON.stringify(s) + '\n');
@@ -53,10 +65,58 @@ class HostImpl implements ts.LanguageServiceHost {
         return ts.getNewLineCharacter(this.configUpToDate().pcl.options);
     }
     getProjectVersion() {
-        return String(version);
+        // Merging in a sibling changes the file list without any file changing
+        return this.siblings.length ? version + "+" + this.siblings.length : String(version);
     }
     getScriptFileNames() {
-        return this.configUpToDate().pcl.fileNames;
+        return this.mergedFileNames || this.configUpToDate().pcl.fileNames;
+    }
+    // Other configs whose files are in this host's program (see sharedProgramFor)
+    siblings: HostImpl[] = [];
+    mergedFileNames: string[] = null;
+    // Configs with the same key have the same effective settings, and are candidates to share a
+    // program. Null if this one shouldn't be shared at all: what it emits depends on its exact set
+    // of files (outFile, outDir without rootDir), or it has its own build info (composite,
+    // incremental).
+    sharingKey() {
+        const { parseError, pcl, raw } = this.configUpToDate();
+        const options = pcl.options;
+        if (! this.isConfig || parseError || pcl.errors.length || ! ts.getEffectiveTypeRoots
+                || options.outFile || (<any>options).out || options.composite || options.incremental
+                || ((options.outDir || options.declarationDir) && ! options.rootDir)) {
+            return null;
+        }
+        const sortedOptions = Object.keys(options).filter(key => key !== "configFilePath").sort()
+            .map(key => [key, options[key]]);
+        // Without a "typeRoots" setting, the @types folders found depend on the config's location
+        const typeRoots = ts.getEffectiveTypeRoots(options, {
+            directoryExists: vfsDirectoryExists,
+            getCurrentDirectory: () => this.getCurrentDirectory()
+        });
+        return JSON.stringify([sortedOptions, typeRoots, pcl.projectReferences, raw.compileOnSave]);
+    }
+    // Adds the files of another config with the same sharingKey to this host's program, if that
+    // can't change what any file sees. Files in only one of the two must be modules that don't
+    // declare anything global; a script or global augmentation would leak into the other
+    // project's files.
+    addSibling(other: HostImpl) {
+        const mine = this.getScriptFileNames(), theirs = other.getScriptFileNames();
+        const inMine: {[fileName: string]: boolean} = {}, inTheirs: {[fileName: string]: boolean} = {};
+        mine.forEach(f => { inMine[f] = true; });
+        theirs.forEach(f => { inTheirs[f] = true; });
+        const onlyTheirs = theirs.filter(f => ! inMine[f]);
+        if (! mine.filter(f => ! inTheirs[f]).concat(onlyTheirs).every(f => isSelfContainedModule(this, f))) {
+            return false;
+        }
+        this.siblings.push(other);
+        this.mergedFileNames = mine.concat(onlyTheirs);
+        return true;
+    }
+    // With "references" (TS 3.0+), imports from a referenced project resolve to its declaration
+    // outputs rather than its sources, as with tsc -b. Those sources are then only checked by
+    // their own project's program, not again in every project that references them.
+    getProjectReferences() {
+        return this.configUpToDate().pcl.projectReferences;
     }
     getScriptVersion(fileName: string) {
         if (fileName in builtinLibs) {
@@ -64,7 +124,8 @@ class HostImpl implements ts.LanguageServiceHost {
         } else if (files[fileName]) {
             return files[fileName].version;
         }
-        return this.getProjectVersion();
+        const diskFile = this.readDiskFile(fileName);
+        return diskFile ? diskFile.version : this.getProjectVersion();
     }
     getScriptSnapshot(fileName: string): ts.IScriptSnapshot {
         if (fileName in builtinLibs) {
@@ -72,8 +133,31 @@ class HostImpl implements ts.LanguageServiceHost {
         } else if (files[fileName]) {
             return files[fileName].snapshot;
         }
-        var text = ts.sys.readFile(fileName);
-        return typeof text === 'string' ? new SnapshotImpl(text) : undefined;
+        const diskFile = this.readDiskFile(fileName);
+        return diskFile ? diskFile.snapshot : undefined;
+    }
+    // Files the IDE doesn't know about (such as declarations in node_modules) are read again
+    // whenever the project changes, unless they're under a source root where the IDE reports
+    // changes (see vfsStamp). They keep their version while their text stays the same, so they
+    // aren't reparsed and incremental builds don't treat them as changed.
+    diskFiles: {[fileName: string]: {stamp: string; version: string; snapshot: SnapshotImpl}} = {};
+    readDiskFile(fileName: string) {
+        const vfs = vfsStamp(fileName);
+        const stamp = vfs !== void 0 ? "vfs:" + vfs : this.getProjectVersion();
+        var entry = this.diskFiles[fileName];
+        if (! entry || entry.stamp !== stamp) {
+            const text = ts.sys.readFile(fileName);
+            if (typeof text !== 'string') {
+                delete this.diskFiles[fileName];
+                return null;
+            }
+            if (! entry || entry.snapshot.text !== text) {
+                entry = { stamp, version: textVersion(text), snapshot: new SnapshotImpl(text) };
+            }
+            entry.stamp = stamp;
+            this.diskFiles[fileName] = entry;
+        }
+        return entry;
     }
     getCurrentDirectory() {
         return "";
@@ -84,42 +168,481 @@ class HostImpl implements ts.LanguageServiceHost {
     useCaseSensitiveFileNames() {
         return ts.sys.useCaseSensitiveFileNames;
     }
-    readDirectory(path: string, extensions?: string[], exclude?: string[], include?: string[]) {
-        return ts.sys.readDirectory(path, extensions, exclude, include);
+    readDirectory(path: string, extensions?: string[], exclude?: string[], include?: string[], depth?: number) {
+        return vfsReadDirectory(path, extensions, exclude, include, depth);
+    }
+    // Resolutions go through resolutionCache. The options differ from this host's own when
+    // resolving in a file that redirects to a referenced project (TS 3.0+), and containingSourceFile
+    // gives the file's module format for node16 and later module resolution (TS 4.7+).
+    resolveModuleNames(moduleNames: string[], containingFile: string, reusedNames?: string[],
+            redirectedReference?: any, options?: ts.CompilerOptions, containingSourceFile?: any) {
+        options = options || this.getCompilationSettings();
+        const optionsKey = this.resolutionOptionsKey(options, false);
+        const getMode = (<any>ts).getModeForResolutionAtIndex;
+        return moduleNames.map((name, i) => cachedResolution(false, name, containingFile, options, optionsKey,
+            redirectedReference, containingSourceFile && getMode ? getMode(containingSourceFile, i, options) : void 0));
+    }
+    resolveTypeReferenceDirectives(typeDirectiveNames: any[], containingFile: string, redirectedReference?: any,
+            options?: ts.CompilerOptions, containingFileMode?: any) {
+        options = options || this.getCompilationSettings();
+        const optionsKey = this.resolutionOptionsKey(options, true);
+        // Since TS 4.7 the names may be FileReferences with their own resolution mode
+        return typeDirectiveNames.map(name => typeof name === 'string'
+            ? cachedResolution(true, name, containingFile, options, optionsKey, redirectedReference, containingFileMode)
+            : cachedResolution(true, name.fileName.toLowerCase(), containingFile, options, optionsKey,
+                redirectedReference, name.resolutionMode || containingFileMode));
+    }
+    resolutionOptionsKey(options: ts.CompilerOptions, isType: boolean) {
+        const config = this.configUpToDate(), i = isType ? 1 : 0;
+        if (options !== config.settings) {
+            return resolutionOptionsKey(options, isType);
+        }
+        return config.resolutionKeys[i] || (config.resolutionKeys[i] = resolutionOptionsKey(options, isType));
     }
     readFile(path: string, encoding?: string) {
         return ts.sys.readFile(path, encoding);
     }
     fileExists(path: string) {
-        return ts.sys.fileExists(path);
+        return vfsFileExists(path);
     }
     directoryExists(directoryName: string) {
-        return ts.sys.directoryExists(directoryName);
+        return vfsDirectoryExists(directoryName);
     }
     getDirectories(directoryName: string) {
-        return ts.sys.getDirectories(directoryName);
+        return vfsGetDirectories(directoryName);
     }
     configUpToDate() {
         if (! this.cachedConfig) {
-            const { config, error } = this.isConfig
-                    ? ts.readConfigFile(this.path, ts.sys.readFile)
-                    : { config: { files: [this.path] }, error: void 0 };
-            const parse = ts.parseJsonConfigFileContent // renamed in TS 1.7
-                    || <never>(<any>ts).parseConfigFile;
-            const dir = this.path.substring(0, this.path.lastIndexOf('/') + 1);
-            const pcl = parse(config || {}, ts.sys, dir);
-            this.cachedConfig = {
-                parseError: error,
-                pcl: pcl,
-                raw: pcl.raw || config || {},
-                // if noImplicitAny unset, report errors anyway, but only as warnings (see getDiagnostics)
-                settings: { noImplicitAny: true, ...pcl.options }
-            };
+            this.cachedConfig = parseConfig(this.path, this.isConfig);
         }
         return this.cachedConfig;
     }
 }
 
+interface ParsedConfig {
+    parseError: ts.Diagnostic;
+    pcl: ts.ParsedCommandLine;
+    raw: any;
+    settings: ts.CompilerOptions;
+    resolutionKeys: string[];  // resolutionOptionsKey of settings, for modules and type references
+}
+
+// Parsed configs by path, kept across clearProgramCache. An entry is reused as long as the config
+// and every file its "extends" chain looked at have the same text, and none of the file lists
+// its include patterns matched have changed.
+var parsedConfigs: {[path: string]: {
+    reads: {[path: string]: string};
+    globs: {[key: string]: number};
+    parsed: ParsedConfig;
+}} = {};
+
+function parseConfig(path: string, isConfig: boolean): ParsedConfig {
+    const cached = parsedConfigs[path];
+    if (cached && Object.keys(cached.reads).every(f => ts.sys.readFile(f) === cached.reads[f])
+            && Object.keys(cached.globs).every(key => globCache[key] && globCache[key].generation === cached.globs[key])) {
+        return cached.parsed;
+    }
+    const reads: {[path: string]: string} = {}, globs: {[key: string]: number} = {};
+    var cacheable = isConfig;
+    const readFile = (f: string) => reads[f] = ts.sys.readFile(f);
+    const host: ts.ParseConfigHost = {
+        useCaseSensitiveFileNames: ts.sys.useCaseSensitiveFileNames,
+        readFile,
+        fileExists: f => readFile(f) !== void 0,
+        readDirectory: (root: string, extensions: any, excludes: any, includes?: any, depth?: number) => {
+            const glob = cachedReadDirectory(root, extensions, excludes, includes, depth);
+            if (glob.key) {
+                globs[glob.key] = glob.generation;
+            } else {
+                cacheable = false;
+            }
+            return glob.result;
+        }
+    };
+    const { config, error } = isConfig
+            ? ts.readConfigFile(path, readFile)
+            : { config: { files: [path] }, error: void 0 };
+    const parse = ts.parseJsonConfigFileContent // renamed in TS 1.7
+            || <never>(<any>ts).parseConfigFile;
+    const dir = path.substring(0, path.lastIndexOf('/') + 1);
+    // Passing the config file name sets options.configFilePath, which locates .tsbuildinfo
+    const pcl = parse(config || {}, host, dir, void 0, isConfig ? path : void 0);
+    const parsed = {
+        parseError: error,
+        pcl: pcl,
+        raw: pcl.raw || config || {},
+        // if noImplicitAny unset, report errors anyway, but only as warnings (see getDiagnostics)
+        settings: { noImplicitAny: true, ...pcl.options },
+        resolutionKeys: <string[]>[]
+    };
+    if (cacheable) {
+        parsedConfigs[path] = { reads, globs, parsed };
+    } else {
+        delete parsedConfigs[path];
+    }
+    return parsed;
+}
+
+// Results of readDirectory for config include patterns, by arguments. Rather than globbing the
+// directory tree again, each result is kept up to date as the IDE reports files being added and
+// deleted, and its generation is bumped when it changes. Only globs entirely within the source
+// roots the IDE mirrors (see vfsAddRoot), for the TS extensions, are cacheable, since those are
+// the only files the indexer reports; anything else (allowJs, .json includes, base paths outside
+// the roots) means a fresh glob.
+var globCache: {[key: string]: {
+    generation: number;
+    matches: (fileName: string) => boolean;
+    result: string[];
+    inResult: {[fileName: string]: boolean};
+}} = {};
+var globGeneration = 0;
+const reportedExtensions = [".ts", ".tsx", ".d.ts"];
+
+function cachedReadDirectory(root: string, extensions: any, excludes: any, includes: any, depth: number) {
+    const key = JSON.stringify([root, extensions, excludes, includes, depth]);
+    var entry = globCache[key];
+    if (! entry) {
+        const result = vfsReadDirectory(root, extensions, excludes, includes, depth);
+        const matches = depth === void 0 && globMatcher(root, extensions, excludes, includes);
+        if (! matches) {
+            return { key: <string>null, generation: 0, result };
+        }
+        const inResult: {[fileName: string]: boolean} = {};
+        result.forEach(f => { inResult[f] = true; });
+        entry = globCache[key] = { generation: ++globGeneration, matches, result, inResult };
+    }
+    return { key, generation: entry.generation, result: entry.result.slice() };
+}
+
+// A test for whether a file would be in the result of ts.sys.readDirectory with these arguments,
+// using the same patterns as its directory walk, or null if that can't be done.
+function globMatcher(root: string, extensions: any, excludes: string[], includes: string[]) {
+    const getPatterns = (<any>ts).getFileMatcherPatterns; // internal; added in TS 2.0
+    if (! getPatterns || ! Array.isArray(extensions)) {
+        return null;
+    }
+    const patterns = getPatterns(root, excludes, includes, ts.sys.useCaseSensitiveFileNames,
+        ts.sys.getCurrentDirectory());
+    if (! ((<string[]>patterns.basePaths).every(vfsRootOf)
+            && (<string[]>extensions).every(ext => reportedExtensions.indexOf(ext) >= 0))) {
+        return null;
+    }
+    const flags = ts.sys.useCaseSensitiveFileNames ? "" : "i";
+    const includeFile = patterns.includeFilePattern && new RegExp(patterns.includeFilePattern, flags);
+    const includeDir = patterns.includeDirectoryPattern && new RegExp(patterns.includeDirectoryPattern, flags);
+    const exclude = patterns.excludePattern && new RegExp(patterns.excludePattern, flags);
+    const basePaths: string[] = patterns.basePaths;
+    return (fileName: string) => {
+        if (! (<string[]>extensions).some(ext => fileName.slice(-ext.length) === ext)
+                || (includeFile && ! includeFile.test(fileName))
+                || (exclude && exclude.test(fileName))) {
+            return false;
+        }
+        // Each directory on the way down from a base path must be walked into too
+        return basePaths.some(base => {
+            if (fileName.substring(0, base.length + 1) !== base + "/") return false;
+            for (var i = fileName.indexOf('/', base.length + 1); i >= 0; i = fileName.indexOf('/', i + 1)) {
+                const dir = fileName.substring(0, i);
+                if ((includeDir && ! includeDir.test(dir)) || (exclude && exclude.test(dir))) return false;
+            }
+            return true;
+        });
+    };
+}
+
+function updateGlobs(fileName: string, added: boolean) {
+    for (const key in globCache) {
+        const entry = globCache[key];
+        if (added ? entry.inResult[fileName] || ! entry.matches(fileName) : ! entry.inResult[fileName]) {
+            continue;
+        }
+        if (added) {
+            entry.result.push(fileName);
+            entry.inResult[fileName] = true;
+        } else {
+            entry.result.splice(entry.result.indexOf(fileName), 1);
+            delete entry.inResult[fileName];
+        }
+        entry.generation = ++globGeneration;
+    }
+}
+
+// The IDE's copy of the directory trees under its source roots, so that module resolution and
+// config globbing don't have to stat the disk for every candidate path. vfsAddRoot pushes a
+// listing of each directory the IDE watches, and vfsUpdate a fresh listing whenever files are
+// created or deleted in one. Directories it doesn't watch (inside node_modules packages) are read
+// from disk on first use and kept until an ancestor is updated, such as when a package is
+// installed. Paths outside the roots still go to ts.sys.
+interface VfsDir {
+    id: number;
+    // Key (lowercased on a case-insensitive file system) -> real name, with a trailing / if a directory
+    entries: {[key: string]: string};
+    lazy: boolean;
+}
+var vfsRoots: string[] = [];
+var vfsDirs: {[key: string]: VfsDir} = {};  // null if the directory doesn't exist
+var vfsFileGens: {[key: string]: number} = {};
+var vfsDirIds = 0;
+// Same check as ts.sys does, which isn't available before configure
+const vfsCaseSensitive = ! require('fs').existsSync(__filename.replace(/\w/g, c =>
+    c === c.toUpperCase() ? c.toLowerCase() : c.toUpperCase()));
+
+function vfsKey(path: string) {
+    return vfsCaseSensitive ? path : path.toLowerCase();
+}
+
+function vfsRootOf(path: string) {
+    const key = vfsKey(path);
+    return vfsRoots.some(root => key === root || key.substring(0, root.length + 1) === root + "/");
+}
+
+function vfsSetDir(dir: string, names: string[], lazy: boolean) {
+    const entries: {[key: string]: string} = Object.create(null);
+    names.forEach(name => { entries[vfsKey(name.replace(/\/$/, ""))] = name; });
+    return vfsDirs[vfsKey(dir)] = { id: ++vfsDirIds, entries, lazy };
+}
+
+// Forgets the listings below dir that match, so they're read again when next needed
+function vfsDropBelow(dir: string, test: (key: string) => boolean) {
+    const prefix = vfsKey(dir) + "/";
+    for (const key in vfsDirs) {
+        if (key.substring(0, prefix.length) === prefix && test(key)) {
+            delete vfsDirs[key];
+        }
+    }
+}
+
+// The IDE builds the listing in the background, so until it arrives the root is read through
+// ts.sys like any other path. Resolutions made meanwhile would never be checked again once the
+// root is mirrored, so they're dropped.
+function vfsAddRoot(root: string, listing: {[dir: string]: string[]}) {
+    vfsRemoveRoot(root);
+    vfsRoots.push(vfsKey(root));
+    invalidateResolutions(root, true);
+    for (const dir in listing) {
+        vfsSetDir(dir, listing[dir], false);
+    }
+}
+
+function vfsRemoveRoot(root: string) {
+    const key = vfsKey(root);
+    vfsRoots = vfsRoots.filter(r => r !== key);
+    delete vfsDirs[key];
+    vfsDropBelow(root, () => true);
+}
+
+function vfsUpdate(dir: string, names: string[]) {
+    const old = vfsDirs[vfsKey(dir)];
+    const entry = vfsSetDir(dir, names, false);
+    invalidateResolutions(dir);
+    const changed: {[key: string]: boolean} = Object.create(null);
+    [old ? old.entries : {}, entry.entries].forEach((entries, i) => {
+        const other = i ? old && old.entries : entry.entries;
+        for (const key in entries) {
+            if (other && other[key] === entries[key]) continue;
+            changed[key] = true;
+            if (i === 0 && entries[key].slice(-1) === "/") {
+                invalidateResolutions(dir + "/" + entries[key].slice(0, -1), true);
+            } else if (entries[key].slice(-1) !== "/") {
+                // A file created (if it's only in the new listing, i = 1) or deleted
+                const fileName = dir + "/" + entries[key];
+                vfsFileGens[vfsKey(fileName)] = (vfsFileGens[vfsKey(fileName)] || 0) + 1;
+                if (isConfigFile(fileName)) {
+                    configLocations = {};
+                }
+                global.ts && updateGlobs(fileName, i === 1);
+            }
+        }
+    });
+    // Subdirectories that came or went are forgotten, as is anything read lazily
+    const prefix = vfsKey(dir) + "/";
+    vfsDropBelow(dir, key => {
+        const child = key.substring(prefix.length).replace(/\/.*/, "");
+        const childDir = vfsDirs[prefix + child];
+        return changed[child] || ! childDir || childDir.lazy;
+    });
+}
+
+function vfsFileChanged(fileName: string) {
+    invalidateResolutions(fileName);
+    vfsFileGens[vfsKey(fileName)] = (vfsFileGens[vfsKey(fileName)] || 0) + 1;
+}
+
+// The listing of a directory, null if it doesn't exist, or undefined if it's outside the roots
+function vfsListing(dir: string): VfsDir {
+    const key = vfsKey(dir);
+    if (key in vfsDirs) return vfsDirs[key];
+    if (! vfsRootOf(dir)) return void 0;
+    if (vfsRoots.indexOf(key) < 0) {
+        const idx = dir.lastIndexOf('/');
+        const parent = vfsListing(dir.substring(0, idx));
+        if (! parent || ! /\/$/.test(parent.entries[vfsKey(dir.substring(idx + 1))] || "")) {
+            return vfsDirs[key] = null;
+        }
+    }
+    const names = readDirNames(dir);
+    return names ? vfsSetDir(dir, names, true) : (vfsDirs[key] = null);
+}
+
+// Names in a directory, with a trailing / on subdirectories, straight from the disk
+function readDirNames(dir: string): string[] {
+    const fs = require('fs');
+    try {
+        if (fs.Dirent) { // Node 10.10+
+            return fs.readdirSync(dir, { withFileTypes: true }).map((d: any) =>
+                d.isDirectory() || (d.isSymbolicLink() && ts.sys.directoryExists(dir + "/" + d.name))
+                    ? d.name + "/" : d.name);
+        }
+        return fs.readdirSync(dir).map((name: string) =>
+            ts.sys.directoryExists(dir + "/" + name) ? name + "/" : name);
+    } catch (e) {
+        return null;
+    }
+}
+
+function vfsFileExists(path: string) {
+    const idx = path.lastIndexOf('/');
+    const dir = vfsListing(path.substring(0, idx));
+    if (dir === void 0) return ts.sys.fileExists(path);
+    const name = dir && dir.entries[vfsKey(path.substring(idx + 1))];
+    return !! name && name.slice(-1) !== "/";
+}
+
+function vfsDirectoryExists(path: string) {
+    const dir = vfsListing(path);
+    return dir === void 0 ? ts.sys.directoryExists(path) : !! dir;
+}
+
+function vfsGetDirectories(path: string) {
+    const dir = vfsListing(path);
+    if (dir === void 0) return ts.sys.getDirectories(path);
+    const names: string[] = [];
+    for (const key in dir && dir.entries) {
+        const name = dir.entries[key];
+        name.slice(-1) === "/" && names.push(name.slice(0, -1));
+    }
+    return names;
+}
+
+function vfsReadDirectory(path: string, extensions?: any, excludes?: any, includes?: any, depth?: number) {
+    const matchFiles = (<any>ts).matchFiles; // internal; the walk behind ts.sys.readDirectory
+    if (! matchFiles || ! vfsRootOf(path)) {
+        return ts.sys.readDirectory(path, extensions, excludes, includes, depth);
+    }
+    const getEntries = (dir: string) => {
+        const listing = vfsListing(dir);
+        const names = listing === void 0 ? readDirNames(dir) || []
+            : listing ? Object.keys(listing.entries).map(key => listing.entries[key]) : [];
+        return {
+            files: names.filter(name => name.slice(-1) !== "/"),
+            directories: names.filter(name => name.slice(-1) === "/").map(name => name.slice(0, -1))
+        };
+    };
+    // The depth parameter was added in TS 2.1, and realpath in TS 3.x
+    const args = [path, extensions, excludes, includes, ts.sys.useCaseSensitiveFileNames,
+        ts.sys.getCurrentDirectory()];
+    matchFiles.length >= 8 && args.push(depth);
+    args.push(getEntries);
+    matchFiles.length >= 9 && args.push((p: string) => p);
+    return <string[]>matchFiles.apply(ts, args);
+}
+
+// An identifier for the current contents of a file under the roots, which changes when the IDE
+// reports the file changing, or undefined if the IDE can't tell.
+function vfsStamp(fileName: string) {
+    const idx = fileName.lastIndexOf('/');
+    const dir = vfsListing(fileName.substring(0, idx));
+    return dir ? dir.id + ":" + (vfsFileGens[vfsKey(fileName)] || 0) : void 0;
+}
+
+// Module and type reference resolutions, kept across clearProgramCache so a new program doesn't
+// probe node_modules all over again for every import. A resolution depends only on the containing
+// directory, the name, and the options, and on the directories and files it looked at (its
+// witnesses). Witnesses the IDE mirrors (see vfsAddRoot) invalidate entries through the update
+// functions; any others are checked by modification time when the entry is reused, at most once
+// per directory between program cache flushes.
+var resolutionCache: {[key: string]: { result: any; mtimes: {[path: string]: number} }} = {};
+var resolutionsByWitness: {[path: string]: string[]} = {};
+var mtimes: {[path: string]: number} = {};
+
+function resolutionOptionsKey(options: ts.CompilerOptions, isType: boolean) {
+    // Default type roots are found from the config's location; module resolution doesn't use it
+    return JSON.stringify(Object.keys(options).filter(key => isType || key !== "configFilePath").sort()
+        .map(key => [key, options[key]]));
+}
+
+function mtime(path: string) {
+    if (! (path in mtimes)) {
+        try {
+            mtimes[path] = require('fs').statSync(path).mtime.getTime();
+        } catch (e) {
+            mtimes[path] = -1;
+        }
+    }
+    return mtimes[path];
+}
+
+function cachedResolution(isType: boolean, name: string, containingFile: string, options: ts.CompilerOptions,
+        optionsKey: string, redirectedReference: any, mode: any) {
+    containingFile = containingFile || "";
+    const key = JSON.stringify([isType, containingFile.substring(0, containingFile.lastIndexOf('/')), name,
+        optionsKey, redirectedReference && redirectedReference.sourceFile.fileName, mode]);
+    const cached = resolutionCache[key];
+    if (cached && Object.keys(cached.mtimes).every(path => mtime(path) === cached.mtimes[path])) {
+        return cached.result;
+    }
+
+    // Everything the resolution looks at is recorded by the nearest directory that exists, since
+    // creating the missing part changes that directory's listing.
+    const witnesses: {[path: string]: boolean} = {};  // true for files whose text was read
+    const parentOf = (path: string) => path.substring(0, path.lastIndexOf('/'));
+    const recordDir = (dir: string) => {
+        while (dir && ! vfsDirectoryExists(dir)) {
+            dir = parentOf(dir);
+        }
+        witnesses[dir] = witnesses[dir] || false;
+    };
+    const host = {
+        fileExists: (f: string) => { recordDir(parentOf(f)); return vfsFileExists(f); },
+        directoryExists: (d: string) => { recordDir(parentOf(d)); return vfsDirectoryExists(d); },
+        readFile: (f: string) => { recordDir(parentOf(f)); witnesses[f] = true; return ts.sys.readFile(f); },
+        getDirectories: (d: string) => { recordDir(d); return vfsGetDirectories(d); },
+        realpath: ts.sys.realpath && ((path: string) => { recordDir(parentOf(path)); return ts.sys.realpath(path); }),
+        getCurrentDirectory: () => "",
+        useCaseSensitiveFileNames: ts.sys.useCaseSensitiveFileNames
+    };
+    // The trailing parameters were added over time (redirectedReference in TS 3.0, mode in TS 4.7)
+    const result = isType
+        ? (<any>ts).resolveTypeReferenceDirective(name, containingFile, options, host, redirectedReference, void 0, mode)
+            .resolvedTypeReferenceDirective
+        : (<any>ts).resolveModuleName(name, containingFile, options, host, void 0, redirectedReference, mode)
+            .resolvedModule;
+
+    const entry = resolutionCache[key] = { result, mtimes: <{[path: string]: number}>{} };
+    for (const path in witnesses) {
+        const dir = vfsDirs[vfsKey(witnesses[path] ? parentOf(path) : path)];
+        if (dir && ! dir.lazy) {
+            (resolutionsByWitness[vfsKey(path)] || (resolutionsByWitness[vfsKey(path)] = [])).push(key);
+        } else {
+            entry.mtimes[path] = mtime(path);
+        }
+    }
+    return result;
+}
+
+// Forgets resolutions that looked at this path, or if below is set, at anything under it
+function invalidateResolutions(path: string, below?: boolean) {
+    const key = vfsKey(path), prefix = key + "/";
+    const forget = (witness: string) => {
+        resolutionsByWitness[witness].forEach(k => { delete resolutionCache[k]; });
+        delete resolutionsByWitness[witness];
+    };
+    key in resolutionsByWitness && forget(key);
+    if (below) {
+        Object.keys(resolutionsByWitness).filter(w => w.substring(0, prefix.length) === prefix).forEach(forget);
+    }
+}
+
 class SnapshotImpl implements ts.IScriptSnapshot {
     constructor(public text: string) {}
     getText(start: number, end: number) {
@@ -143,12 +666,94 @@ class SnapshotImpl implements ts.IScriptSnapshot {
     }
 }
 
+// Host for a single file that belongs to no project, used for whole-document formatting. The
+// formatter only needs the syntax tree, so no program is ever built.
+class SingleFileHost implements ts.LanguageServiceHost {
+    fileName: string = null;
+    snapshot: SnapshotImpl = null;
+    version = 0;
+    getCompilationSettings(): ts.CompilerOptions {
+        return {};
+    }
+    getScriptFileNames() {
+        return [this.fileName];
+    }
+    getScriptVersion(fileName: string) {
+        return String(this.version);
+    }
+    getScriptSnapshot(fileName: string) {
+        return fileName === this.fileName ? this.snapshot : undefined;
+    }
+    getCurrentDirectory() {
+        return "";
+    }
+    getDefaultLibFileName(options: ts.CompilerOptions): string {
+        return "(builtin)/" + ts.getDefaultLibFileName(options);
+    }
+}
+
+// A class or interface that extends or implements other types, for the inheritance index
+interface DerivedType {
+    fileName: string;
+    pos: number; // with fileName, identifies the declaration (see declarationKey)
+    start: number;
+    name: string; // null for class expressions, which can't be extended by name
+    members: {[name: string]: number};
+    // Name text of each base type as written, after undoing renaming imports
+    heritage: {name: string; node: ts.ExpressionWithTypeArguments}[];
+    // Declaration keys of the base types, resolved with the checker when first needed, and the
+    // files they were found in; they're resolved again if any of those files change
+    baseKeys: string[];
+    baseFiles: string[];
+}
+
+// Identifies a declaration across programs, as long as its file is unchanged. Names don't work,
+// since unrelated local or anonymous classes can share one.
+function declarationKey(decl: ts.Node) {
+    return decl.getSourceFile().fileName + ":" + decl.pos;
+}
+
+// Files whose structure skeleton is kept (see Program.structureCache); about as many as have
+// editors open at once
+const STRUCTURE_CACHE_SIZE = 20;
+
 class Program {
     service = ts.createLanguageService(this.host,
         docRegistry || (docRegistry = ts.createDocumentRegistry(ts.sys.useCaseSensitiveFileNames)));
     modFlags = ts.ModifierFlags || <never>ts.NodeFlags; // split off in TS 2.1
     hasModifier = ts.hasModifier || ((n, flag) => !!(n.flags & flag));
+    // The structure skeleton and folds only depend on the file itself, so they're keyed by script
+    // version. Only the most recently used skeletons are kept (see STRUCTURE_CACHE_SIZE).
+    structureCache: {[fileName: string]: {version: string; items: any[]; lastUsed: number}} = {};
+    foldsCache: {[fileName: string]: {version: string; folds: any[]}} = {};
+    // Inheritance index: the derived types declared in each file, and all of them by the name of
+    // each base type. It's only built when overriding declarations are asked for, and then only
+    // files whose SourceFile changed are walked again.
+    heritageByFile: {[fileName: string]: {sourceFile: ts.SourceFile; decls: DerivedType[]}} = {};
+    heritageProgram: ts.Program = null;
+    subtypesByName: {[baseName: string]: DerivedType[]} = Object.create(null);
+    // Project version as of the last compile-on-save emit of each file, and the outputs written
+    emittedVersions: {[fileName: string]: {version: string; outputs: string[]}} = {};
+    // The builder of the last project build, which knows what has been emitted since (TS 2.7+)
+    builder: ts.EmitAndSemanticDiagnosticsBuilderProgram = null;
+    buildState: {
+        program: ts.Program;
+        builder: ts.EmitAndSemanticDiagnosticsBuilderProgram;
+        pending: ts.SourceFile[]; // files left to emit when there's no builder; null entry for outFile
+    } = null;
     constructor(public host: HostImpl) {}
+    lastUsed = Date.now();
+    // Whether the service may be holding a program and type checker, which evict() frees
+    active = true;
+    evict() {
+        this.service.cleanupSemanticCache();
+        this.structureCache = {};
+        this.heritageByFile = {};
+        this.heritageProgram = null;
+        this.subtypesByName = Object.create(null);
+        this.builder = null;
+        this.active = false;
+    }
     fileInProject(fileName: string) {
         return !!this.service.getProgram().getSourceFile(fileName);
     }
@@ -252,23 +857,26 @@ class Program {
             end: occ.textSpan.start + occ.textSpan.length
         }));
     }
-    getSemanticHighlights(fileName: string) {
+    getSemanticHighlights(fileName: string, packed?: boolean) {
         const SK = ts.SyntaxKind;
         var program = this.service.getProgram();
         var sourceFile = program.getSourceFile(fileName);
         if (! sourceFile) return null;
         var typeInfoResolver = program.getTypeChecker();
 
-        var results: any[] = [];
-        var resultByPos: {[pos: number]: any} = {};
+        // Results are columnar: highlight i covers starts[i] .. starts[i] + lengths[i], and has
+        // the attributes in highlightAttrs whose bits are set in flags[i].
+        var starts: number[] = [], lengths: number[] = [], flags: number[] = [];
+        var indexByPos: {[pos: number]: number} = {};
         function highlight(start: number, end: number, attr: string) {
-            var res = resultByPos[start];
-            if (! res) {
-                res = {s: start, l: end - start, a: []};
-                results.push(res);
-                resultByPos[start] = res;
+            var i = indexByPos[start];
+            if (i === void 0) {
+                i = indexByPos[start] = starts.length;
+                starts.push(start);
+                lengths.push(end - start);
+                flags.push(0);
             }
-            res.a.push(attr);
+            flags[i] |= highlightAttrBits[attr];
         }
         function highlightIdent(node: ts.Identifier, attr: string) {
             // node.pos is too early (includes leading trivia)
@@ -405,20 +1013,285 @@ class Program {
         localDecls.forEach(function(decl) {
             usedSymbols.has(decl.symbol) || highlightIdent(<any>decl.name, 'UNUSED');
         });
+        return packed
+            ? { attrs: highlightAttrs, packed: packVarints(starts, lengths, flags) }
+            : { attrs: highlightAttrs, starts, lengths, flags };
+    }
+    getStructureItems(fileName: string, knownVersion: string) {
+        // Include the process start time, as versions start over if the server is restarted
+        const version = startTime + ":" + this.host.getScriptVersion(fileName);
+        var cached = this.structureCache[fileName];
+        if (! cached || cached.version !== version) {
+            const items = this.computeStructureItems(fileName);
+            if (! items) return null;
+            const fileNames = Object.keys(this.structureCache);
+            if (! cached && fileNames.length >= STRUCTURE_CACHE_SIZE) {
+                const oldest = fileNames.reduce((a, b) =>
+                    this.structureCache[a].lastUsed <= this.structureCache[b].lastUsed ? a : b);
+                delete this.structureCache[oldest];
+            }
+            cached = this.structureCache[fileName] = { version, items, lastUsed: 0 };
+        }
+        cached.lastUsed = Date.now();
+        return {
+            version,
+            // Type text and overrides depend on other files too; the caller resolves them again
+            // through getStructureTypes and getStructureOverrides when this changes
+            detailsVersion: startTime + ":" + this.host.getProjectVersion(),
+            // If the caller already has this version, don't bother sending it again
+            items: version === knownVersion ? null : cached.items
+        };
+    }
+    // Type text is comparatively expensive, so it's resolved separately from the skeleton tree,
+    // for the items the navigator is showing. Items are identified by start and name, and are
+    // null if no longer there.
+    getStructureTypes(fileName: string, starts: number[], names: string[]) {
+        const program = this.service.getProgram();
+        const sourceFile = program.getSourceFile(fileName);
+        if (! sourceFile) return null;
+        const typeInfoResolver = program.getTypeChecker();
+        return {
+            version: startTime + ":" + this.host.getProjectVersion(),
+            types: starts.map((start, i) => {
+                const node = this.findStructureDeclaration(sourceFile, start, names[i]);
+                if (! node || ! node.symbol || this.isClassOrInterface(node)) return null;
+                return typeInfoResolver.typeToString(typeInfoResolver.getTypeOfSymbolAtLocation(node.symbol, node));
+            })
+        };
+    }
+    // Overrides and overriding declarations, for the "is overridden" annotations; as above
+    getStructureOverrides(fileName: string, starts: number[], names: string[]) {
+        const sourceFile = this.service.getProgram().getSourceFile(fileName);
+        if (! sourceFile) return null;
+        return {
+            version: startTime + ":" + this.host.getProjectVersion(),
+            overrides: starts.map((start, i) => {
+                const node = this.findStructureDeclaration(sourceFile, start, names[i]);
+                return node && node.symbol ? this.resolveStructureOverrides(node) : null;
+            })
+        };
+    }
+    isClassOrInterface(node: ts.Node) {
+        return node.kind === ts.SyntaxKind.ClassDeclaration || node.kind === ts.SyntaxKind.InterfaceDeclaration;
+    }
+    // The declaration a structure item was made from (see computeStructureItems)
+    findStructureDeclaration(sourceFile: ts.SourceFile, start: number, name: string) {
+        const SK = ts.SyntaxKind;
+        var found: ts.NamedDeclaration = null;
+        (function visit(node: ts.Node) {
+            if (node.pos <= start && start < node.end) {
+                const decl = <ts.NamedDeclaration>node;
+                if (ts.skipTrivia(sourceFile.text, node.pos) === start && node.kind !== SK.Constructor
+                        && decl.name && (<any>decl.name).text === name) {
+                    found = decl;
+                }
+                found || ts.forEachChild(node, visit);
+            }
+        })(sourceFile);
+        return found;
+    }
+    resolveStructureOverrides(node: ts.NamedDeclaration) {
+        const SK = ts.SyntaxKind;
+        const typeInfoResolver = this.service.getProgram().getTypeChecker();
+        const { hasModifier, modFlags } = this;
+        const symbol = node.symbol;
+        if (this.isClassOrInterface(node)) {
+            const subtypes = this.findOverriders(node, null);
+            return subtypes.length ? { overriddenBy: subtypes } : {};
+        }
+        var res: any = {};
+        const container = <ts.ClassLikeDeclaration | ts.InterfaceDeclaration>(
+            node.kind === SK.Parameter ? node.parent.parent : node.parent);
+        if (this.isClassOrInterface(container) && symbol.name && ! hasModifier(node, modFlags.Static)) {
+            var overrides: any[] = [];
+            container.heritageClauses && container.heritageClauses.forEach(hc => hc.types.forEach(typeNode => {
+                const baseType = typeInfoResolver.getTypeAtLocation(typeNode);
+                var baseSym = baseType && typeInfoResolver.getPropertyOfType(baseType, symbol.name);
+                if (! baseSym) return;
+                var baseDecl = baseSym.valueDeclaration;
+                var baseSource = baseDecl.getSourceFile();
+                overrides.push({
+                    fileName: baseSource.fileName,
+                    start: ts.skipTrivia(baseSource.text, baseDecl.pos),
+                    name: typeInfoResolver.symbolToString(baseSym.parent),
+                    wasAbstract: hc.token !== SK.ExtendsKeyword || hasModifier(baseDecl, modFlags.Abstract)
+                });
+            }));
+            if (overrides.length) {
+                res.overrides = overrides;
+            }
+            const overriddenBy = this.findOverriders(container, symbol.name);
+            if (overriddenBy.length) {
+                res.overriddenBy = overriddenBy;
+            }
+        }
+        return res;
+    }
+    // Find all types derived from the given one, directly or indirectly. If memberName is given,
+    // find the declarations of that member in those types instead. Candidates are found by name,
+    // then their base types are resolved to the declaration they actually refer to.
+    findOverriders(baseDecl: ts.NamedDeclaration, memberName: string) {
+        this.updateInheritanceIndex();
+        const typeInfoResolver = this.service.getProgram().getTypeChecker();
+        var results: any[] = [];
+        var visited: {[key: string]: boolean} = {};
+        var queue = baseDecl.name ? [{ name: (<any>baseDecl.name).text, key: declarationKey(baseDecl) }] : [];
+        while (queue.length) {
+            const base = queue.shift();
+            (this.subtypesByName[base.name] || []).forEach(derived => {
+                const key = derived.fileName + ":" + derived.pos;
+                if (visited[key] || this.resolveBaseKeys(derived, typeInfoResolver).indexOf(base.key) < 0) return;
+                visited[key] = true;
+                if (memberName === null) {
+                    results.push({ fileName: derived.fileName, start: derived.start, name: derived.name || "<anonymous>" });
+                } else if (Object.prototype.hasOwnProperty.call(derived.members, memberName)) {
+                    results.push({ fileName: derived.fileName, start: derived.members[memberName], name: derived.name || "<anonymous>" });
+                }
+                derived.name && queue.push({ name: derived.name, key });
+            });
+        }
         return results;
     }
-    getStructureItems(fileName: string) {
+    resolveBaseKeys(derived: DerivedType, typeInfoResolver: ts.TypeChecker) {
+        if (! derived.baseKeys) {
+            var baseKeys: string[] = [], baseFiles: string[] = [];
+            derived.heritage.forEach(({ node }) => {
+                const t = typeInfoResolver.getTypeAtLocation(node);
+                (t && t.symbol && t.symbol.declarations || []).forEach(decl => {
+                    baseKeys.push(declarationKey(decl));
+                    baseFiles.push(decl.getSourceFile().fileName);
+                });
+            });
+            derived.baseKeys = baseKeys;
+            derived.baseFiles = baseFiles;
+        }
+        return derived.baseKeys;
+    }
+    updateInheritanceIndex() {
+        const program = this.service.getProgram();
+        if (this.heritageProgram === program) {
+            return;
+        }
+        const oldIndex = this.heritageByFile;
+        var newIndex: typeof oldIndex = {};
+        var changed: {[fileName: string]: boolean} = {};
+        program.getSourceFiles().forEach(sourceFile => {
+            const fileName = sourceFile.fileName;
+            const old = oldIndex[fileName];
+            if (old && old.sourceFile === sourceFile) {
+                newIndex[fileName] = old;
+                return;
+            }
+            changed[fileName] = true;
+            old && this.unindexDerivedTypes(old.decls);
+            const decls = fileName in builtinLibs ? [] : this.findDerivedTypes(sourceFile);
+            newIndex[fileName] = { sourceFile, decls };
+            decls.forEach(derived => derived.heritage.forEach(({ name }) => {
+                const subtypes = this.subtypesByName[name] || (this.subtypesByName[name] = []);
+                subtypes.indexOf(derived) < 0 && subtypes.push(derived);
+            }));
+        });
+        for (const fileName in oldIndex) {
+            if (! newIndex[fileName]) {
+                changed[fileName] = true;
+                this.unindexDerivedTypes(oldIndex[fileName].decls);
+            }
+        }
+        // Base types declared in a changed file may have moved or gone
+        for (const fileName in newIndex) {
+            newIndex[fileName].decls.forEach(derived => {
+                if (derived.baseFiles && derived.baseFiles.some(f => changed[f])) {
+                    derived.baseKeys = derived.baseFiles = null;
+                }
+            });
+        }
+        this.heritageByFile = newIndex;
+        this.heritageProgram = program;
+    }
+    unindexDerivedTypes(decls: DerivedType[]) {
+        decls.forEach(derived => derived.heritage.forEach(({ name }) => {
+            const subtypes = (this.subtypesByName[name] || []).filter(d => d !== derived);
+            if (subtypes.length) {
+                this.subtypesByName[name] = subtypes;
+            } else {
+                delete this.subtypesByName[name];
+            }
+        }));
+    }
+    // Walks a file for the classes and interfaces that extend or implement something. This only
+    // looks at syntax; base types are resolved later, by resolveBaseKeys.
+    findDerivedTypes(sourceFile: ts.SourceFile) {
+        var decls: DerivedType[] = [];
+        if (! /\b(extends|implements)\b/.test(sourceFile.text)) {
+            return decls;
+        }
+        const SK = ts.SyntaxKind;
+        const { hasModifier, modFlags } = this;
+        const fileName = sourceFile.fileName;
+        const text = sourceFile.text;
+        // import { Base as Alias } is extended as Alias, but indexed by the original name
+        var renames: {[alias: string]: string} = Object.create(null);
+        sourceFile.statements.forEach(stmt => {
+            const clause = stmt.kind === SK.ImportDeclaration && (<ts.ImportDeclaration>stmt).importClause;
+            const bindings = clause && clause.namedBindings;
+            bindings && bindings.kind === SK.NamedImports && (<ts.NamedImports>bindings).elements.forEach(el => {
+                if (el.propertyName) renames[el.name.text] = el.propertyName.text;
+            });
+        });
+        function heritageName(expr: ts.Expression) {
+            if (expr.kind === SK.Identifier) {
+                const name = (<ts.Identifier>expr).text;
+                return renames[name] || name;
+            }
+            return expr.kind === SK.PropertyAccessExpression ? (<ts.PropertyAccessExpression>expr).name.text : null;
+        }
+        ts.forEachChild(sourceFile, function visit(node: ts.Node) {
+            const decl = <ts.ClassLikeDeclaration | ts.InterfaceDeclaration>node;
+            if ((node.kind === SK.ClassDeclaration || node.kind === SK.ClassExpression
+                    || node.kind === SK.InterfaceDeclaration) && decl.heritageClauses) {
+                var derived: DerivedType = {
+                    fileName,
+                    pos: node.pos,
+                    start: ts.skipTrivia(text, node.pos),
+                    name: decl.name ? decl.name.text : null,
+                    members: {},
+                    heritage: [],
+                    baseKeys: null,
+                    baseFiles: null
+                };
+                (<ts.NodeArray<ts.ClassElement | ts.TypeElement>>decl.members).forEach(member => {
+                    if (member.kind === SK.Constructor) {
+                        (<ts.ConstructorDeclaration>member).parameters.forEach(p => {
+                            if (hasModifier(p, modFlags.ParameterPropertyModifier) && p.name.kind === SK.Identifier)
+                                derived.members[(<ts.Identifier>p.name).text] = ts.skipTrivia(text, p.pos);
+                        });
+                    } else if (member.name && (<any>member.name).text && ! hasModifier(member, modFlags.Static)) {
+                        derived.members[(<any>member.name).text] = ts.skipTrivia(text, member.pos);
+                    }
+                });
+                decl.heritageClauses.forEach(hc => hc.types.forEach(typeNode => {
+                    const name = heritageName(typeNode.expression);
+                    name && derived.heritage.push({ name, node: typeNode });
+                }));
+                derived.heritage.length && decls.push(derived);
+            }
+            ts.forEachChild(node, visit);
+        });
+        return decls;
+    }
+    computeStructureItems(fileName: string) {
+        const snapshot = this.host.getScriptSnapshot(fileName);
+        if (! snapshot) return null;
         const SK = ts.SyntaxKind;
         const SEK = ts.ScriptElementKind;
-        var program = this.service.getProgram();
-        var sourceFile = program.getSourceFile(fileName);
-        if (! sourceFile) return null;
-        var typeInfoResolver = program.getTypeChecker();
+        // Only the syntax is needed; types are resolved later by getStructureTypes
+        const sourceFile = ts.createSourceFile(fileName, snapshot.getText(0, snapshot.getLength()),
+            ts.ScriptTarget.Latest, true);
 
         const { hasModifier, modFlags } = this;
-        function buildResults(topNode: ts.Node, inFunction: boolean, baseTypes?: [ts.Type, boolean][]) {
+        function buildResults(topNode: ts.Node, inFunction: boolean) {
             var results: any[] = [];
-            function add(node: ts.NamedDeclaration, kind: string, symbol?: ts.Symbol) {
+            function add(node: ts.NamedDeclaration, kind: string, hasDetails?: boolean) {
                 var res: any = {
                     name: node.name && (<any>node.name).text || "<unnamed>",
                     kind: kind,
@@ -426,87 +1299,62 @@ class Program {
                     start: ts.skipTrivia(sourceFile.text, node.pos),
                     end: node.end
                 };
-                if (symbol) {
-                    var type = typeInfoResolver.getTypeOfSymbolAtLocation(symbol, node);
-                    res.type = typeInfoResolver.typeToString(type);
-                    if (baseTypes && symbol.name && ! hasModifier(node, modFlags.Static)) {
-                        var overrides: any[] = [];
-                        baseTypes.forEach(([baseType, isImplements]) => {
-                            var baseSym = typeInfoResolver.getPropertyOfType(baseType, symbol.name);
-                            if (! baseSym) return;
-                            var baseDecl = baseSym.valueDeclaration;
-                            var baseSource = baseDecl.getSourceFile();
-                            overrides.push({
-                                fileName: baseSource.fileName,
-                                start: ts.skipTrivia(baseSource.text, baseDecl.pos),
-                                name: typeInfoResolver.symbolToString(baseSym.parent),
-                                wasAbstract: isImplements || hasModifier(baseDecl, modFlags.Abstract)
-                            });
-                        });
-                        if (overrides.length) {
-                            res.overrides = overrides;
-                        }
-                    }
+                if (hasDetails && node.name) {
+                    res.hasDetails = true;
                 }
                 results.push(res);
                 return res;
             }
-            function addFunc(node: ts.FunctionLikeDeclaration, kind: string, symbol?: ts.Symbol) {
-                var res = add(node, kind, symbol);
+            function addFunc(node: ts.FunctionLikeDeclaration, kind: string, hasDetails?: boolean) {
+                var res = add(node, kind, hasDetails);
                 if (node.body) {
                     res.children = buildResults(node.body, true);
                 }
                 return res;
             }
             function addClass(node: ts.ClassDeclaration | ts.InterfaceDeclaration, kind: string) {
-                var res = add(node, kind);
-                var baseTypes: [ts.Type, boolean][] = [];
+                var res = add(node, kind, true);
                 node.heritageClauses && node.heritageClauses.forEach(hc => {
                     var isExtends = hc.token === SK.ExtendsKeyword;
-                    var typeNames = hc.types.map(typeNode => {
-                        const t = typeInfoResolver.getTypeAtLocation(typeNode);
-                        t && baseTypes.push([t, ! isExtends]);
-                        return typeNode.getFullText();
-                    }).join(", ");
-                    res[isExtends ? "extends" : "type"] = typeNames;
+                    res[isExtends ? "extends" : "type"] = hc.types.map(typeNode => typeNode.getFullText()).join(", ");
                 });
-                res.children = buildResults(node, false, baseTypes);
+                res.children = buildResults(node, false);
             }
             function visit(node: ts.Node) {
                 switch (node.kind) {
                     case SK.PropertyDeclaration:
                     case SK.PropertySignature:
-                        add(<ts.PropertyDeclaration | ts.PropertySignature>node, SEK.memberVariableElement, node.symbol);
+                        add(<ts.PropertyDeclaration | ts.PropertySignature>node, SEK.memberVariableElement, true);
                         break;
                     case SK.MethodDeclaration:
-                        addFunc(<ts.MethodDeclaration>node, SEK.memberFunctionElement, node.symbol);
+                        addFunc(<ts.MethodDeclaration>node, SEK.memberFunctionElement, true);
                         break;
                     case SK.MethodSignature:
-                        add(<ts.MethodSignature>node, SEK.memberFunctionElement, node.symbol);
+                        add(<ts.MethodSignature>node, SEK.memberFunctionElement, true);
                         break;
                     case SK.Constructor:
                         var res = addFunc(<ts.ConstructorDeclaration>node, SEK.constructorImplementationElement);
                         res.name = "constructor";
                         (<ts.ConstructorDeclaration>node).parameters.forEach(function(p) {
                             if (hasModifier(p, modFlags.ParameterPropertyModifier))
-                                add(p, SEK.memberVariableElement, p.symbol);
+                                add(p, SEK.memberVariableElement, true);
                         });
                         break;
                     case SK.GetAccessor:
-                        addFunc(<ts.AccessorDeclaration>node, SEK.memberGetAccessorElement, node.symbol);
+                        addFunc(<ts.AccessorDeclaration>node, SEK.memberGetAccessorElement, true);
                         break;
                     case SK.SetAccessor:
-                        addFunc(<ts.AccessorDeclaration>node, SEK.memberSetAccessorElement, node.symbol);
+                        addFunc(<ts.AccessorDeclaration>node, SEK.memberSetAccessorElement, true);
                         break;
                     case SK.VariableStatement:
                         if (! inFunction) {
                             (<ts.VariableStatement>node).declarationList.declarations.forEach(function(v) {
-                                add(v, SEK.variableElement, v.symbol);
+                                add(v, SEK.variableElement, true);
                             });
                         }
                         break;
                     case SK.FunctionDeclaration:
-                        addFunc(<ts.FunctionDeclaration>node, SEK.functionElement, node.symbol);
+                        addFunc(<ts.FunctionDeclaration>node, SEK.functionElement, true);
                         break;
                     case SK.ClassDeclaration:
                         addClass(<ts.ClassDeclaration>node, SEK.classElement);
@@ -531,18 +1379,227 @@ class Program {
         }
         return buildResults(sourceFile, false);
     }
+    getIndexItems(fileName: string) {
+        const snapshot = this.host.getScriptSnapshot(fileName);
+        if (! snapshot) return null;
+        const SK = ts.SyntaxKind;
+        const SEK = ts.ScriptElementKind;
+        const text = snapshot.getText(0, snapshot.getLength());
+        // Only the syntax is needed, so don't wait for the whole program to be built
+        const sourceFile = ts.createSourceFile(fileName, text, ts.ScriptTarget.Latest, true);
+        const { hasModifier, modFlags } = this;
+
+        var items: any[] = [];
+        function add(node: ts.NamedDeclaration, kind: string, container: string) {
+            const name: string = node.name && (<any>node.name).text;
+            if (! name) return null;
+            items.push({
+                name: name,
+                kind: kind,
+                kindModifiers: ts.getNodeModifiers(node),
+                container: container,
+                start: ts.skipTrivia(text, node.name.pos)
+            });
+            return container ? container + "." + name : name;
+        }
+        function visitMember(node: ts.Node, container: string) {
+            switch (node.kind) {
+                case SK.PropertyDeclaration:
+                case SK.PropertySignature:
+                    add(<ts.PropertyDeclaration | ts.PropertySignature>node, SEK.memberVariableElement, container);
+                    break;
+                case SK.MethodDeclaration:
+                case SK.MethodSignature:
+                    add(<ts.MethodDeclaration | ts.MethodSignature>node, SEK.memberFunctionElement, container);
+                    break;
+                case SK.GetAccessor:
+                    add(<ts.AccessorDeclaration>node, SEK.memberGetAccessorElement, container);
+                    break;
+                case SK.SetAccessor:
+                    add(<ts.AccessorDeclaration>node, SEK.memberSetAccessorElement, container);
+                    break;
+                case SK.Constructor:
+                    (<ts.ConstructorDeclaration>node).parameters.forEach(p => {
+                        if (hasModifier(p, modFlags.ParameterPropertyModifier))
+                            add(p, SEK.memberVariableElement, container);
+                    });
+                    break;
+                case SK.EnumMember:
+                    add(<ts.EnumMember>node, SEK.enumMemberElement, container);
+                    break;
+            }
+        }
+        function visit(node: ts.Node, container: string) {
+            var name: string;
+            switch (node.kind) {
+                case SK.ClassDeclaration:
+                    name = add(<ts.ClassDeclaration>node, SEK.classElement, container);
+                    name && (<ts.ClassDeclaration>node).members.forEach(m => visitMember(m, name));
+                    break;
+                case SK.InterfaceDeclaration:
+                    name = add(<ts.InterfaceDeclaration>node, SEK.interfaceElement, container);
+                    name && (<ts.InterfaceDeclaration>node).members.forEach(m => visitMember(m, name));
+                    break;
+                case SK.EnumDeclaration:
+                    name = add(<ts.EnumDeclaration>node, SEK.enumElement, container);
+                    name && (<ts.EnumDeclaration>node).members.forEach(m => visitMember(m, name));
+                    break;
+                case SK.TypeAliasDeclaration:
+                    add(<ts.TypeAliasDeclaration>node, SEK.typeElement, container);
+                    break;
+                case SK.FunctionDeclaration:
+                    add(<ts.FunctionDeclaration>node, SEK.functionElement, container);
+                    break;
+                case SK.VariableStatement:
+                    const declList = (<ts.VariableStatement>node).declarationList;
+                    const kind = declList.flags & ts.NodeFlags.Const ? SEK.constElement
+                            : declList.flags & ts.NodeFlags.Let ? SEK.letElement
+                            : SEK.variableElement;
+                    declList.declarations.forEach(v => { add(v, kind, container); });
+                    break;
+                case SK.ModuleDeclaration:
+                    name = add(<ts.ModuleDeclaration>node, SEK.moduleElement, container);
+                    const body = (<ts.ModuleDeclaration>node).body;
+                    if (! name || ! body) break;
+                    if (body.kind === SK.ModuleBlock) {
+                        (<ts.ModuleBlock>body).statements.forEach(n => visit(n, name));
+                    } else {
+                        visit(body, name); // namespace A.B.C
+                    }
+                    break;
+            }
+        }
+        sourceFile.statements.forEach(n => visit(n, ""));
+
+        // Every name mentioned in the file, so reference searches can skip the files that
+        // couldn't possibly refer to a symbol
+        const idents: {[name: string]: boolean} = Object.create(null);
+        (function collect(node: ts.Node) {
+            switch (node.kind) {
+                case SK.Identifier:
+                    idents[(<ts.Identifier>node).text] = true;
+                    break;
+                case SK.StringLiteral:
+                case SK.NoSubstitutionTemplateLiteral:
+                    const str = (<ts.LiteralExpression>node).text;
+                    if (/^[A-Za-z_$][\w$]*$/.test(str)) idents[str] = true;
+                    break;
+            }
+            ts.forEachChild(node, collect);
+        })(sourceFile);
+        return { items, idents: Object.keys(idents) };
+    }
     getFolds(fileName: string) {
         // ok if file not in project
-        return this.service.getOutliningSpans(fileName).map(os => ({
-            start: os.textSpan.start,
-            end: os.textSpan.start + os.textSpan.length
-        }));
+        const version = this.host.getScriptVersion(fileName);
+        var cached = this.foldsCache[fileName];
+        if (! cached || cached.version !== version) {
+            cached = this.foldsCache[fileName] = {
+                version,
+                folds: this.service.getOutliningSpans(fileName).map(os => ({
+                    start: os.textSpan.start,
+                    end: os.textSpan.start + os.textSpan.length
+                }))
+            };
+        }
+        return cached.folds;
+    }
+    // Program files the IDE doesn't index, such as those a tsconfig includes from outside the
+    // source roots, whose text mentions any of the names. The index can't be asked about these,
+    // so the Java side adds them to its candidates for a restricted search.
+    getUnindexedFilesContaining(fileName: string, names: string[]) {
+        if (! this.fileInProject(fileName)) return null;
+        return this.service.getProgram().getSourceFiles()
+            .filter(sf => ! files[sf.fileName] && ! (sf.fileName in builtinLibs)
+                && names.some(name => sf.text.indexOf(name) >= 0))
+            .map(sf => sf.fileName);
+    }
+    // All files of the program, for a reference search that goes through them one by one
+    getProgramFiles(fileName: string) {
+        if (! this.fileInProject(fileName)) return null;
+        return this.service.getProgram().getSourceFiles()
+            .filter(sf => ! (sf.fileName in builtinLibs))
+            .map(sf => sf.fileName);
+    }
+    // Restricts a reference search to the given candidate files plus the ones the symbol is
+    // declared in. Only valid if the name the candidates were chosen by is really what's at the
+    // position; otherwise returns null and the whole program must be searched.
+    searchFilesFor(fileName: string, position: number, name: string, candidates: string[]) {
+        if (! name || ! candidates) return null;
+        const program = this.service.getProgram();
+        const node = nodeAtPosition(program.getSourceFile(fileName), position);
+        if (! node || (<ts.Identifier>node).text !== name) return null;
+        const search: {[fileName: string]: boolean} = {};
+        search[fileName] = true;
+        candidates.forEach(f => { if (program.getSourceFile(f)) search[f] = true; });
+        (this.service.getDefinitionAtPosition(fileName, position) || []).forEach(def => {
+            search[def.fileName] = true;
+        });
+        return Object.keys(search);
+    }
+    // Other names the references can be reached by (import/export renames, import =), which the
+    // candidate files must be widened by. Returns null if some of them can be reached by any name
+    // at all (default exports), in which case a restricted search can't be complete.
+    findAliasNames(refs: {fileName: string; textSpan: ts.TextSpan}[]) {
+        const SK = ts.SyntaxKind;
+        const { hasModifier, modFlags } = this;
+        const program = this.service.getProgram();
+        const aliases: string[] = [];
+        const complete = refs.every(ref => {
+            const node = nodeAtPosition(program.getSourceFile(ref.fileName), ref.textSpan.start + 1);
+            var parent = node && node.parent;
+            if (! parent) return true;
+            switch (parent.kind) {
+                case SK.ExportAssignment:
+                    return false;
+                case SK.ImportSpecifier:
+                case SK.ExportSpecifier:
+                    const spec = <ts.ImportOrExportSpecifier>parent;
+                    if (spec.propertyName !== node) return true;
+                    if (spec.name.text === "default") return false;
+                    aliases.push(spec.name.text);
+                    return true;
+            }
+            if ((<ts.NamedDeclaration>parent).name === node && hasModifier(parent, modFlags.Default)) {
+                return false;
+            }
+            while (parent.kind === SK.QualifiedName || parent.kind === SK.PropertyAccessExpression) {
+                parent = parent.parent;
+            }
+            if (parent.kind === SK.ImportEqualsDeclaration && (<ts.ImportEqualsDeclaration>parent).name !== node) {
+                aliases.push((<ts.ImportEqualsDeclaration>parent).name.text);
+            }
+            return true;
+        });
+        return complete ? aliases : null;
     }
-    getReferencesAtPosition(fileName: string, position: number) {
+    // With allowIncomplete, a search restricted to filesToSearch is returned even if references
+    // might also be reached by other names (aliases is then null), and the caller searches on
+    // through the rest of the program itself; otherwise the whole program is searched at once.
+    getReferencesAtPosition(fileName: string, position: number, name?: string, filesToSearch?: string[],
+            allowIncomplete?: boolean) {
         if (! this.fileInProject(fileName)) return null;
-        var refs = this.service.getReferencesAtPosition(fileName, position);
+        var refs: {fileName: string; textSpan: ts.TextSpan; isWriteAccess: boolean}[] = null;
+        var aliases: string[] = null;
+        const searchFiles = this.searchFilesFor(fileName, position, name, filesToSearch);
+        const highlights = searchFiles && this.service.getDocumentHighlights(fileName, position, searchFiles);
+        if (highlights) {
+            refs = [];
+            highlights.forEach(h => h.highlightSpans.forEach(span => {
+                refs.push({
+                    fileName: h.fileName,
+                    textSpan: span.textSpan,
+                    isWriteAccess: <string>span.kind !== "reference"
+                });
+            }));
+            aliases = this.findAliasNames(refs);
+            if (! aliases && ! allowIncomplete) refs = null;
+        }
+        if (! refs) {
+            refs = this.service.getReferencesAtPosition(fileName, position);
+        }
         var program = this.service.getProgram();
-        return refs && refs.map(ref => {
+        return refs && { aliases, refs: refs.map(ref => {
             var file = program.getSourceFile(ref.fileName);
             var lineStarts = file.getLineStarts();
             var { line } = ts.getLineAndCharacterOfPosition(file, ref.textSpan.start);
@@ -554,7 +1611,7 @@ class Program {
                 lineStart: lineStarts[line],
                 lineText: file.text.substring(lineStarts[line], lineStarts[line + 1])
             };
-        });
+        }) };
     }
     getFormattingEdits(fileName: string, start: number, end: number, settings: ts.FormatCodeSettings) {
         // ok if file not in project
@@ -564,26 +1621,142 @@ class Program {
         if (! this.fileInProject(fileName)) return null;
         return this.service.getRenameInfo(fileName, position);
     }
-    findRenameLocations(fileName: string, position: number, findInStrings: boolean, findInComments: boolean) {
+    findRenameLocations(fileName: string, position: number, findInStrings: boolean, findInComments: boolean,
+            name?: string, filesToSearch?: string[]) {
         if (! this.fileInProject(fileName)) return null;
-        var locs = this.service.findRenameLocations(fileName, position, findInStrings, findInComments);
-        return locs && locs.map(loc => {
-            return {
-                fileName: loc.fileName,
+        var locs: {fileName: string; textSpan: ts.TextSpan}[] = null;
+        const searchFiles = ! findInStrings && ! findInComments
+            && this.searchFilesFor(fileName, position, name, filesToSearch);
+        const highlights = searchFiles && this.service.getDocumentHighlights(fileName, position, searchFiles);
+        if (highlights) {
+            const program = this.service.getProgram();
+            locs = [];
+            highlights.forEach(h => {
+                const text = program.getSourceFile(h.fileName).text;
+                h.highlightSpans.forEach(span => {
+                    // References made under an alias name aren't renamed
+                    if (text.substr(span.textSpan.start, span.textSpan.length) === name) {
+                        locs.push({ fileName: h.fileName, textSpan: span.textSpan });
+                    }
+                });
+            });
+        } else {
+            locs = this.service.findRenameLocations(fileName, position, findInStrings, findInComments);
+        }
+        if (! locs) return null;
+        // Grouped by file, with the line of each location for display
+        const program = this.service.getProgram();
+        const byFile: {[fileName: string]: {fileName: string; locs: any[]}} = {};
+        const result: {fileName: string; locs: any[]}[] = [];
+        locs.forEach(loc => {
+            var group = byFile[loc.fileName];
+            if (! group) {
+                result.push(group = byFile[loc.fileName] = { fileName: loc.fileName, locs: [] });
+            }
+            var file = program.getSourceFile(loc.fileName);
+            var lineStarts = file.getLineStarts();
+            var { line } = ts.getLineAndCharacterOfPosition(file, loc.textSpan.start);
+            group.locs.push({
                 start: loc.textSpan.start,
                 end: loc.textSpan.start + loc.textSpan.length,
-            };
+                lineStart: lineStarts[line],
+                lineText: file.text.substring(lineStarts[line], lineStarts[line + 1])
+            });
         });
+        return result;
     }
     getCompileOnSaveEmitOutput(fileName: string) {
         const { compileOnSave } = this.host.configUpToDate().raw;
         if (! compileOnSave || ! this.fileInProject(fileName)) return null;
-        return this.service.getEmitOutput(fileName);
+        // Nothing in the project has changed since this file was last emitted, so the output
+        // would be the same - unless some of it has been deleted since
+        const version = this.host.getProjectVersion();
+        const last = this.emittedVersions[fileName];
+        if (last && last.version === version && last.outputs.every(f => ts.sys.fileExists(f))) return null;
+        const output = this.service.getEmitOutput(fileName);
+        this.emittedVersions[fileName] = { version, outputs: output.outputFiles.map(f => f.name) };
+        return output;
     }
     getEmitOutput(fileName: string) {
         if (! this.fileInProject(fileName)) return null;
         return this.service.getEmitOutput(fileName);
     }
+    // Builds the whole project from the language service's program, so nothing is parsed or
+    // checked again. buildNext is then called until done, each call emitting a batch of files, so
+    // the IDE can show progress and handle other requests in between.
+    buildStart(fileName: string) {
+        const program = this.service.getProgram();
+        const options = program.getCompilerOptions();
+        if (options.noEmit) return "Nothing to build: noEmit is set in " + this.host.path;
+        var builder: ts.EmitAndSemanticDiagnosticsBuilderProgram = null;
+        if (ts.createEmitAndSemanticDiagnosticsBuilderProgram) {
+            // Only files affected by changes since the last build are emitted. Without a build in
+            // this session, what was last built is read from .tsbuildinfo (TS 3.4+, only written
+            // with "incremental" or "composite" set).
+            var old = this.builder;
+            if (! old && ts.readBuilderProgram && ts.sys.createHash) {
+                old = ts.readBuilderProgram(options, {
+                    useCaseSensitiveFileNames: () => ts.sys.useCaseSensitiveFileNames,
+                    getCurrentDirectory: () => this.host.getCurrentDirectory(),
+                    readFile: path => ts.sys.readFile(path)
+                });
+            }
+            builder = this.builder = ts.createEmitAndSemanticDiagnosticsBuilderProgram(program, {
+                useCaseSensitiveFileNames: () => ts.sys.useCaseSensitiveFileNames,
+                createHash: ts.sys.createHash
+            }, old || void 0);
+        }
+        const sourceFiles = program.getSourceFiles().filter(sf =>
+            ! sf.isDeclarationFile && ! program.isSourceFileFromExternalLibrary(sf));
+        this.buildState = {
+            program,
+            builder,
+            pending: builder ? null : options.outFile || (<any>options).out ? [null] : sourceFiles
+        };
+        return { total: options.outFile || (<any>options).out ? 1 : sourceFiles.length };
+    }
+    // The config files of the projects this one references, to be built before it
+    getReferencedConfigs(fileName: string) {
+        return (this.host.getProjectReferences() || []).map(ref =>
+            ts.resolveProjectReferencePath ? ts.resolveProjectReferencePath(ref) : ref.path);
+    }
+    buildNext(fileName: string, max: number) {
+        const state = this.buildState;
+        if (! state) return "No build in progress";
+        const outputFiles: { name: string; text: string; writeByteOrderMark: boolean }[] = [];
+        const writeFile = (name: string, text: string, writeByteOrderMark: boolean) => {
+            outputFiles.push({ name, text, writeByteOrderMark });
+        };
+        const diagnostics: string[] = [];
+        const addDiagnostics = (result: ts.EmitResult) => result.diagnostics.forEach(d => {
+            var where = "";
+            if (d.file) {
+                const { line, character } = d.file.getLineAndCharacterOfPosition(d.start);
+                where = d.file.fileName + "(" + (line + 1) + "," + (character + 1) + "): ";
+            }
+            diagnostics.push(where + ts.flattenDiagnosticMessageText(d.messageText, "\n"));
+        });
+        var emitted = 0, done = false;
+        while (emitted < max) {
+            if (state.builder) {
+                const next = state.builder.emitNextAffectedFile(writeFile);
+                if (! next) {
+                    done = true;
+                    break;
+                }
+                addDiagnostics(next.result);
+            } else {
+                if (! state.pending.length) {
+                    done = true;
+                    break;
+                }
+                addDiagnostics(state.program.emit(state.pending.shift() || void 0, writeFile));
+            }
+            emitted++;
+        }
+        if (done) this.buildState = null;
+        return { outputFiles, emitted, done, diagnostics };
+    }
     getCompilerOptions() {
         return ts.optionDeclarations.map(function optToJson(opt: any) {
             var res = { ...opt };
@@ -607,6 +1780,27 @@ class Program {
         if (! this.service.getCodeFixesAtPosition) return []; // Method added in TS 2.1
         return this.service.getCodeFixesAtPosition(fileName, start, end, errorCodes, formatOptions, void 0);
     }
+    getSupportedCodeFixes(fileName: string) {
+        return ts.getSupportedCodeFixes ? ts.getSupportedCodeFixes() : []; // Function added in TS 2.1
+    }
+    // Applies the fix with the given fixId to every matching error in the file, or in every file of
+    // the project, as one combined set of changes.
+    getCombinedCodeFix(fileName: string, fixId: {}, scope: string, formatOptions: ts.FormatCodeSettings) {
+        if (! this.fileInProject(fileName)) return null;
+        if (! this.service.getCombinedCodeFix) {
+            return "getCombinedCodeFix requires TypeScript 2.8\nCurrent version: " + ts.version;
+        }
+        const fileNames = scope === "project"
+            ? this.service.getProgram().getSourceFiles()
+                .filter(sf => ! sf.isDeclarationFile && sf.fileName in files).map(sf => sf.fileName)
+            : [fileName];
+        const changes: ts.FileTextChanges[] = [];
+        fileNames.forEach(f => {
+            const fix = this.service.getCombinedCodeFix({ type: "file", fileName: f }, fixId, formatOptions, void 0);
+            changes.push(...fix.changes);
+        });
+        return { changes };
+    }
     getApplicableRefactors(fileName: string, pos: number, end: number) {
         if (! this.fileInProject(fileName)) return null;
         if (! this.service.getApplicableRefactors) return []; // Method added in TS 2.4
@@ -627,16 +1821,128 @@ class Program {
     }
 }
 
+// The innermost node whose text (not counting leading trivia) contains or ends at the position
+function nodeAtPosition(sourceFile: ts.SourceFile, position: number) {
+    return (function find(node: ts.Node): ts.Node {
+        return ts.forEachChild(node, child => child.getStart(sourceFile) <= position && position <= child.end
+            ? find(child) || child : undefined);
+    })(sourceFile);
+}
+
+// Encodes parallel arrays as base64 of unsigned LEB128 varints: for each index, the zigzag-encoded
+// delta from the previous start, then the length, then the flags. Much more compact than JSON
+// arrays, and lets the Java side decode without allocating an object per number.
+function packVarints(starts: number[], lengths: number[], flags: number[]): string {
+    var bytes: number[] = [];
+    function put(n: number) {
+        while (n > 0x7F) {
+            bytes.push((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        bytes.push(n);
+    }
+    var prev = 0;
+    for (var i = 0; i < starts.length; i++) {
+        var delta = starts[i] - prev;
+        prev = starts[i];
+        put(delta >= 0 ? delta * 2 : -delta * 2 - 1);
+        put(lengths[i]);
+        put(flags[i]);
+    }
+    return Buffer.from(bytes).toString('base64');
+}
+
+// Formatting settings registered by the Java side, which passes formatSettings[id] in calls
+var formatSettings: ts.FormatCodeSettings[] = [];
+
+function registerFormatSettings(id: number, settings: ts.FormatCodeSettings) {
+    formatSettings[id] = settings;
+}
+
+var formatHost: SingleFileHost;
+var formatService: ts.LanguageService;
+
+// Formats a whole file given its text, without adding it to the set of known files. Used by the
+// "Format TypeScript Sources" action, whose worker processes have no projects loaded.
+function getFormattingEditsForDocument(fileName: string, text: string, settings: ts.FormatCodeSettings) {
+    try {
+        if (! formatService) {
+            formatHost = new SingleFileHost();
+            formatService = ts.createLanguageService(formatHost, ts.createDocumentRegistry());
+        }
+        formatHost.fileName = fileName;
+        formatHost.snapshot = new SnapshotImpl(text);
+        formatHost.version++;
+        return formatService.getFormattingEditsForDocument(fileName, settings);
+    } catch (error) { return error.stack; }
+}
+
 var programCache: {[path: string]: Program};
 
 function clearProgramCache() {
     docRegistry = void 0;
+    mtimes = {};
     programCache = {};
+    sharedPrograms = {};
+}
+
+// Programs whose hosts may take in sibling configs, by HostImpl.sharingKey. Many packages in a
+// repository typically have a tsconfig.json that just extends a common base; sharing one program
+// between them means each file is bound and checked by one type checker, not one per package.
+var sharedPrograms: {[key: string]: Program[]} = {};
+
+function sharedProgramFor(host: HostImpl) {
+    const key = host.sharingKey();
+    if (! key) return new Program(host);
+    const candidates = sharedPrograms[key] || (sharedPrograms[key] = []);
+    for (const p of candidates) {
+        if (p.host.addSibling(host)) return p;
+    }
+    const p = new Program(host);
+    candidates.push(p);
+    return p;
 }
 
-function configure(tsLibDir: string, locale: string) {
-    global.ts = builtinLibs = keywordLengthMap = docRegistry = void 0;
+// Whether a file is a module with no global declarations, based on its syntax alone. Module
+// augmentations (declare module "x" {}) count as global, since they change what another file
+// declares, and so does export as namespace X, which declares a global. Results are cached by
+// script version.
+var moduleCheckCache: {[fileName: string]: {version: string; result: boolean}} = {};
+
+function isSelfContainedModule(host: HostImpl, fileName: string) {
+    if (/\.json$/.test(fileName)) return true;
+    const version = host.getScriptVersion(fileName);
+    const cached = moduleCheckCache[fileName];
+    if (cached && cached.version === version) return cached.result;
+    const snapshot = host.getScriptSnapshot(fileName);
+    var result = false;
+    if (snapshot) {
+        const text = snapshot.getText(0, snapshot.getLength());
+        if (! /\bdeclare\s+global\b|^\s*\/\/\/\s*<reference\s+(types|path|lib)\b/m.test(text)) {
+            const sourceFile = ts.createSourceFile(fileName, text, ts.ScriptTarget.Latest);
+            result = !! (<any>sourceFile).externalModuleIndicator
+                && ! sourceFile.statements.some(s => s.kind === ts.SyntaxKind.NamespaceExportDeclaration
+                    || (s.kind === ts.SyntaxKind.ModuleDeclaration
+                        && (<ts.ModuleDeclaration>s).name.kind === ts.SyntaxKind.StringLiteral));
+        }
+    }
+    moduleCheckCache[fileName] = { version, result };
+    return result;
+}
+
+function configure(tsLibDir: string, locale: string, heapBudget: number, idleTimeout: number) {
+    heapBudgetMB = heapBudget || 0;
+    idleMinutes = idleTimeout || 0;
+    startEvictionTimer();
+    global.ts = builtinLibs = keywordLengthMap = docRegistry = formatService = void 0;
     programCache = {};
+    sharedPrograms = {};
+    moduleCheckCache = {};
+    parsedConfigs = {};
+    globCache = {};
+    resolutionCache = {};
+    resolutionsByWitness = {};
+    mtimes = {};
     try {
         loadServices(tsLibDir);
         // Localized error messages added in TS 2.1
@@ -663,12 +1969,23 @@ function configure(tsLibDir: string, locale: string) {
 }
 
 function updateFile(fileName: string, newText: string) {
+    if (files[fileName] && files[fileName].snapshot.text === newText) {
+        return; // Reparse without changes; keep versions so cached results stay valid
+    }
     version++;
     if (! (fileName in files) || /\.json$/.test(fileName)) {
         clearProgramCache();
     }
+    invalidateResolutions(fileName);
+    if (! (fileName in files)) {
+        if (isConfigFile(fileName)) {
+            configLocations = {};
+        }
+        invalidateResolutions(fileName.substring(0, fileName.lastIndexOf('/')));
+        updateGlobs(fileName, true);
+    }
     files[fileName] = {
-        version: String(version),
+        version: textVersion(newText),
         snapshot: new SnapshotImpl(newText)
     };
 }
@@ -676,33 +1993,100 @@ function updateFile(fileName: string, newText: string) {
 function deleteFile(fileName: string) {
     version++;
     clearProgramCache();
+    if (isConfigFile(fileName)) {
+        configLocations = {};
+    }
+    // Files of a project being closed are deleted here, but are still there for other projects
+    if (global.ts && ! vfsFileExists(fileName)) {
+        invalidateResolutions(fileName);
+        invalidateResolutions(fileName.substring(0, fileName.lastIndexOf('/')));
+        updateGlobs(fileName, false);
+    }
     delete files[fileName];
 }
 
 function query(method: keyof Program, fileName: string/*, ...*/) {
     try {
         const p = getProject(fileName);
-        return (<Function>p[method]).apply(p, [].slice.call(arguments, 1));
+        p.lastUsed = Date.now();
+        p.active = true;
+        try {
+            return (<Function>p[method]).apply(p, [].slice.call(arguments, 1));
+        } finally {
+            evictInactivePrograms(p);
+        }
     } catch (error) { return error.stack; }
 }
 
+// Limits on programs that aren't being used, set by configure. A program's type checker and
+// caches are freed when it has been idle for idleMinutes, or, least recently used first, while
+// the heap is larger than heapBudgetMB. The next request for the project rebuilds them. Since the
+// parsed and bound source files stay in docRegistry, that costs a type check, not a reparse.
+var heapBudgetMB = 0, idleMinutes = 0;
+var lastEvictionCheck = 0;
+const EVICTION_CHECK_INTERVAL = 10000;
+// Also checks between requests, so programs are evicted even when the IDE goes quiet. Unref'd, so
+// it never keeps the process alive by itself.
+var evictionTimer: any = null;
+
+function startEvictionTimer() {
+    evictionTimer && clearInterval(evictionTimer);
+    evictionTimer = null;
+    if (heapBudgetMB > 0 || idleMinutes > 0) {
+        evictionTimer = setInterval(() => evictInactivePrograms(null), EVICTION_CHECK_INTERVAL);
+        evictionTimer.unref && evictionTimer.unref();
+    }
+}
+
+function evictInactivePrograms(current: Program) {
+    const now = Date.now();
+    if (now - lastEvictionCheck < EVICTION_CHECK_INTERVAL) return;
+    lastEvictionCheck = now;
+    const active: Program[] = [];
+    for (const key in programCache) {
+        const p = programCache[key];
+        if (p && p.active && p !== current && ! p.buildState && active.indexOf(p) < 0) {
+            active.push(p);
+        }
+    }
+    active.sort((a, b) => a.lastUsed - b.lastUsed);
+    while (idleMinutes > 0 && active.length && now - active[0].lastUsed > idleMinutes * 60000) {
+        active.shift().evict();
+    }
+    // Freed memory only shows up after garbage collection, so evict just one program per check
+    // rather than everything until the heap shrinks.
+    if (heapBudgetMB > 0 && active.length && process.memoryUsage().heapUsed > heapBudgetMB * 1048576) {
+        active.shift().evict();
+    }
+}
+
+// Directory -> the tsconfig.json that applies to files in it, or null if there is none. Unlike
+// programCache this survives files being added and removed, and is only reset when the IDE reports
+// a tsconfig.json being added or deleted (a rename is both), so the file system isn't probed
+// up the whole directory tree again every time the program cache is cleared.
+var configLocations: {[dir: string]: string} = {};
+
+function isConfigFile(fileName: string) {
+    return /(^|\/)tsconfig\.json$/.test(fileName);
+}
+
+// Walks up the directory tree looking for tsconfig.json
+function findConfig(dir: string): string {
+    if (dir in configLocations) return configLocations[dir];
+    const config = dir + "/tsconfig.json", idx = dir.lastIndexOf('/');
+    return configLocations[dir] = vfsFileExists(config) ? config
+        : idx < 0 ? null
+        : findConfig(dir.substring(0, idx));
+}
+
 function getProject(fileName: string) {
     var p = programCache[fileName];
     if (! p) {
-        // Walk up the directory tree looking for tsconfig.json
-        p = (function getConfiguredProgram(path: string) {
-            const idx = path.lastIndexOf('/'), dir = path.substring(0, idx);
-            if (idx < 0) return null;
-            if (! (dir in programCache)) {
-                var config = dir + "/tsconfig.json";
-                if (ts.sys.fileExists(config)) {
-                    programCache[dir] = new Program(new HostImpl(config, true));
-                } else {
-                    programCache[dir] = getConfiguredProgram(dir);
-                }
-            }
-            return programCache[dir];
-        })(fileName);
+        const idx = fileName.lastIndexOf('/');
+        const config = idx < 0 ? null : findConfig(fileName.substring(0, idx));
+        if (config) {
+            p = programCache[config] || (programCache[config] = sharedProgramFor(new HostImpl(config, true)));
+        }
         // If no tsconfig.json found, create a program with only this file
         programCache[fileName] = p || (p = new Program(new HostImpl(fileName, false)));
     }
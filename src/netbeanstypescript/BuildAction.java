@@ -0,0 +1,163 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.AbstractAction;
+import org.json.simple.JSONObject;
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.openide.DialogDisplayer;
+import org.openide.NotifyDescriptor;
+import org.openide.awt.StatusDisplayer;
+import org.openide.filesystems.FileObject;
+import org.openide.util.Cancellable;
+import org.openide.util.RequestProcessor;
+import org.openide.util.Utilities;
+
+/**
+ * Builds the whole project of each selected file or folder with the program the language service
+ * already has, instead of running tsc from scratch. Where the TS version has the builder API, only
+ * files affected by changes since the last build are emitted. Referenced projects are built first.
+ */
+public class BuildAction extends AbstractAction {
+
+    private static final int BATCH_SIZE = 20;
+    private static final int MAX_DIAGNOSTICS_SHOWN = 50;
+
+    public BuildAction() {
+        super("Build TypeScript Project");
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        Collection<? extends FileObject> fileObjects =
+                Utilities.actionsGlobalContext().lookupAll(FileObject.class);
+        final Set<FileObject> configs = new LinkedHashSet<>();
+        for (FileObject fo: fileObjects) {
+            FileObject config = findConfig(fo);
+            if (config != null) {
+                configs.add(config);
+            }
+        }
+        RequestProcessor.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                Set<FileObject> visited = new HashSet<>();
+                for (FileObject config: configs) {
+                    if (! buildWithReferences(config, visited)) {
+                        break;
+                    }
+                }
+            }
+        });
+    }
+
+    // Projects referenced through "references" are built first, since the referencing project
+    // uses their declaration outputs. Each project is built once, however many refer to it.
+    private static boolean buildWithReferences(FileObject config, Set<FileObject> visited) {
+        if (! visited.add(config)) {
+            return true;
+        }
+        Object refs = TSService.call("getReferencedConfigs", config);
+        if (refs != null) {
+            for (String path: (List<String>) refs) {
+                FileObject ref = TSService.findIndexedFileObject(path);
+                if (ref == null) {
+                    ref = TSService.findIndexedFileObject(path + "/tsconfig.json");
+                }
+                if (ref != null && ! buildWithReferences(ref, visited)) {
+                    return false;
+                }
+            }
+        }
+        return build(config);
+    }
+
+    // The tsconfig.json that applies to the file (found the same way as by the server), or the
+    // file itself if it has none
+    static FileObject findConfig(FileObject fo) {
+        for (FileObject dir = fo.isFolder() ? fo : fo.getParent(); dir != null; dir = dir.getParent()) {
+            FileObject config = dir.getFileObject("tsconfig.json");
+            if (config != null) {
+                return config;
+            }
+        }
+        return fo.isFolder() ? null : fo;
+    }
+
+    // Returns false if the build was cancelled or failed
+    private static boolean build(FileObject config) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript build " + config.getPath(),
+                new Cancellable() {
+            @Override
+            public boolean cancel() {
+                cancelled.set(true);
+                return true;
+            }
+        });
+        progress.start();
+        try {
+            long t1 = System.currentTimeMillis();
+            JSONObject start = (JSONObject) TSService.callEx("buildStart", config);
+            int total = ((Number) start.get("total")).intValue();
+            progress.switchToDeterminate(total);
+            int emitted = 0, outputs = 0;
+            List<String> diagnostics = new ArrayList<>();
+            while (! cancelled.get()) {
+                JSONObject res = (JSONObject) TSService.callEx("buildNext", config, BATCH_SIZE);
+                List<JSONObject> outputFiles = (List<JSONObject>) res.get("outputFiles");
+                CompileAction.queueOutputFiles(outputFiles);
+                outputs += outputFiles.size();
+                emitted += ((Number) res.get("emitted")).intValue();
+                diagnostics.addAll((List<String>) res.get("diagnostics"));
+                progress.progress(Math.min(emitted, total));
+                if (Boolean.TRUE.equals(res.get("done"))) {
+                    break;
+                }
+            }
+            String summary = (cancelled.get() ? "Build cancelled: " : "Built ") + config.getParent().getPath()
+                    + ": " + emitted + " files emitted, " + outputs + " outputs, "
+                    + diagnostics.size() + " errors in " + (System.currentTimeMillis() - t1) + "ms";
+            StatusDisplayer.getDefault().setStatusText(summary);
+            if (! diagnostics.isEmpty()) {
+                StringBuilder sb = new StringBuilder(summary).append('\n');
+                for (String diag: diagnostics.subList(0, Math.min(diagnostics.size(), MAX_DIAGNOSTICS_SHOWN))) {
+                    sb.append('\n').append(diag);
+                }
+                if (diagnostics.size() > MAX_DIAGNOSTICS_SHOWN) {
+                    sb.append("\n...");
+                }
+                DialogDisplayer.getDefault().notifyLater(
+                        new NotifyDescriptor.Message(sb.toString(), NotifyDescriptor.WARNING_MESSAGE));
+            }
+            return ! cancelled.get();
+        } catch (TSService.TSException e) {
+            e.notifyLater();
+            return false;
+        } finally {
+            progress.finish();
+        }
+    }
+}
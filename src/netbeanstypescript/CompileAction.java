@@ -18,12 +18,17 @@ package netbeanstypescript;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import javax.swing.AbstractAction;
 import org.json.simple.JSONObject;
@@ -85,25 +90,85 @@ public class CompileAction extends AbstractAction {
         RequestProcessor.getDefault().post(new CompileTask());
     }
 
-    public static void writeEmitOutput(FileObject src, Object res) throws TSService.TSException {
+    // Emitted files waiting to be written, by path. If a file is emitted again before it has been
+    // written, only the latest contents are written.
+    private static final Map<File, byte[]> pendingWrites = new LinkedHashMap<>();
+    // Source files whose outputs are queued, to report as compiled once they've been written
+    private static final Set<String> pendingCompiled = new LinkedHashSet<>();
+    private static final RequestProcessor.Task writeTask =
+            new RequestProcessor("TypeScript output writer").create(new Runnable() {
+        @Override
+        public void run() {
+            StringBuilder errors = new StringBuilder();
+            List<String> compiled;
+            while (true) {
+                Map.Entry<File, byte[]> entry;
+                synchronized (pendingWrites) {
+                    Iterator<Map.Entry<File, byte[]>> iter = pendingWrites.entrySet().iterator();
+                    if (! iter.hasNext()) {
+                        compiled = new ArrayList<>(pendingCompiled);
+                        pendingCompiled.clear();
+                        break;
+                    }
+                    entry = iter.next();
+                    iter.remove();
+                }
+                try {
+                    writeIfChanged(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    errors.append("Could not write file ").append(entry.getKey()).append('\n').append(e).append('\n');
+                }
+            }
+            if (errors.length() > 0) {
+                new TSService.TSException(errors.toString()).notifyLater();
+            } else if (! compiled.isEmpty()) {
+                StatusDisplayer.getDefault().setStatusText(compiled.size() == 1
+                        ? compiled.get(0) + " compiled." : compiled.size() + " files compiled.");
+            }
+        }
+    });
+
+    // Rewriting a file with the same contents would still fire file change events, making file
+    // watchers and builds downstream think the output has changed.
+    private static void writeIfChanged(File file, byte[] bytes) throws IOException {
+        FileObject existing = FileUtil.toFileObject(FileUtil.normalizeFile(file));
+        if (existing != null && existing.getSize() == bytes.length && Arrays.equals(existing.asBytes(), bytes)) {
+            TSService.log.log(Level.FINE, "Unchanged {0}", file);
+            return;
+        }
+        TSService.log.log(Level.FINE, "Writing {0}", file);
+        // Using the FileObject API instead of direct FS access ensures that the changes
+        // show up in the IDE quickly.
+        try (OutputStream os = (existing != null ? existing : FileUtil.createData(file)).getOutputStream()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Queues the files of a TS EmitOutput to be written. The status bar reports the source as
+     * compiled once they have been.
+     */
+    public static void writeEmitOutput(FileObject src, Object res) {
         if (res == null) {
             return;
         }
-        for (JSONObject file: (List<JSONObject>) ((JSONObject) res).get("outputFiles")) {
+        synchronized (pendingWrites) {
+            pendingCompiled.add(src.getNameExt());
+        }
+        queueOutputFiles((List<JSONObject>) ((JSONObject) res).get("outputFiles"));
+    }
+
+    /** Queues files to be written, given as TS OutputFile objects. */
+    static void queueOutputFiles(List<JSONObject> outputFiles) {
+        for (JSONObject file: outputFiles) {
             String name = (String) file.get("name");
             boolean writeBOM = Boolean.TRUE.equals(file.get("writeByteOrderMark"));
             String text = (String) file.get("text");
-            TSService.log.log(Level.FINE, "Writing {0}", name);
-            // Using the FileObject API instead of direct FS access ensures that the changes
-            // show up in the IDE quickly.
-            try (Writer w = new OutputStreamWriter(FileUtil.createData(new File(name)).getOutputStream(),
-                    StandardCharsets.UTF_8)) {
-                if (writeBOM) w.write('\uFEFF');
-                w.write(text);
-            } catch (IOException e) {
-                throw new TSService.TSException("Could not write file " + name + "\n" + e);
+            byte[] bytes = ((writeBOM ? "\uFEFF" : "") + text).getBytes(StandardCharsets.UTF_8);
+            synchronized (pendingWrites) {
+                pendingWrites.put(new File(name), bytes);
             }
         }
-        StatusDisplayer.getDefault().setStatusText(src.getNameExt() + " compiled.");
+        writeTask.schedule(0);
     }
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.text.BadLocationException;
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.netbeans.editor.BaseDocument;
+import org.netbeans.lib.editor.util.swing.DocumentUtilities;
+import org.netbeans.modules.csl.spi.GsfUtilities;
+import org.openide.awt.StatusDisplayer;
+import org.openide.filesystems.FileObject;
+import org.openide.util.Cancellable;
+import org.openide.util.ContextAwareAction;
+import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
+import org.openide.util.Utilities;
+
+/**
+ * Reformats all the TypeScript files in the selected files and folders. The files are spread over
+ * several nbts-services worker processes, separate from the one that holds the projects, and
+ * files that aren't open in the editor are rewritten directly without loading a document.
+ */
+public class FormatAction extends AbstractAction implements ContextAwareAction {
+
+    // Each worker is a Node.js process with its own copy of TypeScript loaded, so there's no
+    // point in starting one for just a few files.
+    private static final int MAX_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int MIN_FILES_PER_WORKER = 20;
+    private static final RequestProcessor RP = new RequestProcessor("TypeScript format", MAX_WORKERS);
+
+    // The selection this instance is for, or null to use the global one
+    private final Collection<? extends FileObject> context;
+
+    public FormatAction() {
+        this(null);
+    }
+
+    private FormatAction(Collection<? extends FileObject> context) {
+        super("Format TypeScript Sources");
+        this.context = context;
+        if (context != null) {
+            setEnabled(appliesTo(context));
+        }
+    }
+
+    @Override
+    public Action createContextAwareInstance(Lookup actionContext) {
+        return new FormatAction(actionContext.lookupAll(FileObject.class));
+    }
+
+    // Since this is on every folder's popup menu, it's only enabled for TypeScript files and for
+    // folders in a TypeScript project. Only looks for a tsconfig.json upwards, so it stays cheap.
+    private static boolean appliesTo(Collection<? extends FileObject> fileObjects) {
+        for (FileObject fo: fileObjects) {
+            if (fo.isFolder() ? BuildAction.findConfig(fo) != null : fo.hasExt("ts") || fo.hasExt("tsx")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        final Collection<? extends FileObject> fileObjects = context != null ? context
+                : Utilities.actionsGlobalContext().lookupAll(FileObject.class);
+        RequestProcessor.getDefault().post(new FormatTask(fileObjects));
+    }
+
+    private static void collect(FileObject fo, Set<FileObject> result) {
+        if (fo.isFolder()) {
+            if (fo.getNameExt().equals("node_modules") || fo.getNameExt().startsWith(".")) {
+                return;
+            }
+            for (FileObject child: fo.getChildren()) {
+                collect(child, result);
+            }
+        } else if ((fo.hasExt("ts") || fo.hasExt("tsx")) && ! fo.getName().endsWith(".d")) {
+            result.add(fo);
+        }
+    }
+
+    private static class FormatTask implements Runnable, Cancellable {
+        final Collection<? extends FileObject> selection;
+        final ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript format", this);
+        volatile boolean cancelled;
+        final AtomicInteger next = new AtomicInteger(), done = new AtomicInteger(), changed = new AtomicInteger();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        FormatTask(Collection<? extends FileObject> selection) {
+            this.selection = selection;
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            progress.start();
+            try {
+                Set<FileObject> fileSet = new LinkedHashSet<>();
+                for (FileObject fo: selection) {
+                    collect(fo, fileSet);
+                }
+                final List<FileObject> files = new ArrayList<>(fileSet);
+                progress.switchToDeterminate(files.size());
+                int workers = Math.max(1, Math.min(MAX_WORKERS, files.size() / MIN_FILES_PER_WORKER));
+                List<Future<?>> tasks = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
+                    tasks.add(RP.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            work(files);
+                        }
+                    }));
+                }
+                for (Future<?> task: tasks) {
+                    try {
+                        task.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        TSService.log.log(Level.WARNING, null, e);
+                    }
+                }
+                if (error.get() != null) {
+                    new TSService.TSException(error.get()).notifyLater();
+                }
+                StatusDisplayer.getDefault().setStatusText((cancelled ? "Format cancelled: " : "")
+                        + changed.get() + " of " + done.get() + " TypeScript files reformatted.");
+            } finally {
+                progress.finish();
+            }
+        }
+
+        // Takes files off the shared list until it's empty, using its own process
+        void work(List<FileObject> files) {
+            TSServiceProcess process = new TSServiceProcess();
+            try {
+                while (! cancelled && error.get() == null) {
+                    int i = next.getAndIncrement();
+                    if (i >= files.size()) {
+                        return;
+                    }
+                    FileObject fo = files.get(i);
+                    try {
+                        if (format(process, fo)) {
+                            changed.incrementAndGet();
+                        }
+                    } catch (TSService.TSException e) {
+                        if (! process.isValid() || ! process.isConfigured()) {
+                            error.compareAndSet(null, e.getMessage());
+                            return;
+                        }
+                        // A JS exception for this one file; carry on with the others
+                    } catch (IOException e) {
+                        TSService.log.log(Level.WARNING, "Could not format " + fo.getPath(), e);
+                    }
+                    // Counted and reported together, so the workers never move the bar backwards
+                    synchronized (progress) {
+                        progress.progress(fo.getNameExt(), done.incrementAndGet());
+                    }
+                }
+            } finally {
+                process.close();
+            }
+        }
+    }
+
+    private static boolean format(TSServiceProcess process, FileObject fo) throws TSService.TSException, IOException {
+        final BaseDocument doc = GsfUtilities.getDocument(fo, false);
+        if (doc == null) {
+            TSChangeSet.FileText ft = new TSChangeSet.FileText(fo);
+            Object edits = process.callEx("getFormattingEditsForDocument", fo.getPath(), ft.text,
+                    TSFormatter.getFormattingSettings(fo));
+            List<TSChangeSet.Edit> fileEdits = TSChangeSet.toEdits(edits);
+            if (TSChangeSet.apply(ft.text, fileEdits).equals(ft.text)) {
+                return false;
+            }
+            TSChangeSet.write(fo, ft.applyEdits(fileEdits));
+            return true;
+        }
+
+        // Open documents are edited in place, as long as they haven't been modified meanwhile
+        final String[] text = new String[1];
+        final int[] version = new int[1];
+        doc.render(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    text[0] = doc.getText(0, doc.getLength());
+                    version[0] = DocumentUtilities.getDocumentVersion(doc);
+                } catch (BadLocationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        final Object edits = process.callEx("getFormattingEditsForDocument", fo.getPath(), text[0],
+                TSFormatter.getFormattingSettings(doc));
+        final boolean[] applied = new boolean[1];
+        doc.runAtomic(new Runnable() {
+            @Override
+            public void run() {
+                if (DocumentUtilities.getDocumentVersion(doc) != version[0]) {
+                    return;
+                }
+                try {
+                    applied[0] = TSFormatter.applyEdits(doc, edits) != null;
+                } catch (BadLocationException e) {
+                    TSService.log.log(Level.WARNING, null, e);
+                }
+            }
+        });
+        return applied[0];
+    }
+}
@@ -63,7 +63,7 @@ public class OrganizeImportsAction extends BaseAction {
                     Object changes = TSService.callEx("organizeImports", fileObj,
                            TSFormatter.getFormattingSettings(doc));
                     if (changes == null || cancel.get()) return;
-                    TSHintsProvider.doFixes(doc, fileObj, (List<JSONObject>) changes);
+                    TSHintsProvider.doFixes(fileObj, "Organize Imports", (List<JSONObject>) changes);
                 } catch (TSService.TSException e) {
                     e.notifyLater();
                 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import org.json.simple.JSONObject;
+import org.netbeans.api.queries.FileEncodingQuery;
+import org.netbeans.editor.BaseDocument;
+import org.netbeans.modules.csl.spi.GsfUtilities;
+import org.netbeans.modules.refactoring.spi.SimpleRefactoringElementImplementation;
+import org.netbeans.modules.refactoring.spi.Transaction;
+import org.openide.DialogDisplayer;
+import org.openide.NotifyDescriptor;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import org.openide.text.CloneableEditorSupport;
+import org.openide.text.PositionBounds;
+import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
+
+/**
+ * A set of text edits to many files, applied all together. Files that are open in the editor are
+ * edited through their document; other files are read, edited and written back directly, in
+ * parallel, without ever loading them into an editor.
+ */
+public class TSChangeSet implements Transaction {
+
+    private static final RequestProcessor RP = new RequestProcessor("TSChangeSet",
+            Runtime.getRuntime().availableProcessors());
+
+    static class Edit {
+        final int start, end;
+        final String oldText; // if non-null, the text that must be in the span for the edit to apply
+        final String newText;
+        volatile boolean enabled = true;
+
+        Edit(int start, int end, String oldText, String newText) {
+            this.start = start;
+            this.end = end;
+            this.oldText = oldText;
+            this.newText = newText;
+        }
+    }
+
+    private static final Comparator<Edit> byPosition = new Comparator<Edit>() {
+        @Override
+        public int compare(Edit a, Edit b) {
+            return a.start != b.start ? Integer.compare(a.start, b.start) : Integer.compare(a.end, b.end);
+        }
+    };
+
+    private final Map<FileObject, List<Edit>> edits = new LinkedHashMap<>();
+    private final Map<File, String> newFiles = new LinkedHashMap<>();
+    // What commit() did to each file, so rollback() can undo it: the original bytes of a closed
+    // file, the inverse edits of a document, or CREATED
+    private final Map<FileObject, Object> undo = new LinkedHashMap<>();
+    private static final Object CREATED = new Object();
+
+    Edit add(FileObject fo, int start, int end, String oldText, String newText) {
+        List<Edit> fileEdits = edits.get(fo);
+        if (fileEdits == null) {
+            edits.put(fo, fileEdits = new ArrayList<>());
+        }
+        Edit edit = new Edit(start, end, oldText, newText);
+        fileEdits.add(edit);
+        return edit;
+    }
+
+    /** Adds a list of TS TextChange objects, whose spans are all relative to the original text. */
+    void addTextChanges(FileObject fo, Object textChanges) {
+        for (Edit edit: toEdits(textChanges)) {
+            add(fo, edit.start, edit.end, null, edit.newText);
+        }
+    }
+
+    static List<Edit> toEdits(Object textChanges) {
+        List<Edit> result = new ArrayList<>();
+        for (JSONObject change: (List<JSONObject>) textChanges) {
+            JSONObject span = (JSONObject) change.get("span");
+            int start = ((Number) span.get("start")).intValue();
+            int length = ((Number) span.get("length")).intValue();
+            result.add(new Edit(start, start + length, null, (String) change.get("newText")));
+        }
+        return result;
+    }
+
+    /** Adds a file to be created, with the TS TextChange objects giving its contents. */
+    void addNewFile(File file, Object textChanges) {
+        // All the spans are empty, at the start of the (empty) file
+        StringBuilder sb = new StringBuilder();
+        for (JSONObject change: (List<JSONObject>) textChanges) {
+            sb.append((String) change.get("newText"));
+        }
+        newFiles.put(file, sb.toString());
+    }
+
+    /** One preview element per edit, all with the same text, for a change that isn't previewed. */
+    List<Element> createElements(String displayText) {
+        List<Element> elements = new ArrayList<>();
+        for (Map.Entry<FileObject, List<Edit>> entry: edits.entrySet()) {
+            for (Edit edit: entry.getValue()) {
+                elements.add(new Element(entry.getKey(), edit, displayText));
+            }
+        }
+        return elements;
+    }
+
+    Set<FileObject> getFiles() {
+        return edits.keySet();
+    }
+
+    boolean isEmpty() {
+        return edits.isEmpty() && newFiles.isEmpty();
+    }
+
+    // The enabled edits to a file, in order. Exact duplicates (as when two code fixes add the same
+    // import) are applied once; an edit overlapping an earlier one is dropped.
+    private List<Edit> enabledEdits(FileObject fo) {
+        List<Edit> sorted = new ArrayList<>();
+        for (Edit edit: edits.get(fo)) {
+            if (edit.enabled) {
+                sorted.add(edit);
+            }
+        }
+        Collections.sort(sorted, byPosition);
+        List<Edit> result = new ArrayList<>(sorted.size());
+        Edit last = null;
+        for (Edit edit: sorted) {
+            if (last != null && edit.start == last.start && edit.end == last.end
+                    && edit.newText.equals(last.newText)) {
+                continue;
+            }
+            if (last != null && edit.start < last.end) {
+                TSService.log.log(Level.WARNING, "Dropping overlapping edit at {0} in {1}",
+                        new Object[] { edit.start, fo.getPath() });
+                continue;
+            }
+            result.add(edit);
+            last = edit;
+        }
+        return result;
+    }
+
+    /** Applies sorted, non-overlapping edits to a string. */
+    static String apply(String text, List<Edit> fileEdits) throws IOException {
+        check(text, fileEdits);
+        StringBuilder sb = new StringBuilder(text.length());
+        int pos = 0;
+        for (Edit edit: fileEdits) {
+            sb.append(text, pos, edit.start).append(edit.newText);
+            pos = edit.end;
+        }
+        return sb.append(text, pos, text.length()).toString();
+    }
+
+    private static void check(String text, List<Edit> fileEdits) throws IOException {
+        for (Edit edit: fileEdits) {
+            if (edit.end > text.length()
+                    || (edit.oldText != null && ! text.regionMatches(edit.start, edit.oldText, 0, edit.oldText.length()))) {
+                throw new IOException("Text at offset " + edit.start + " has changed");
+            }
+        }
+    }
+
+    // The contents of a file that isn't open, as the editor would see it: decoded in the file's
+    // encoding, line endings converted to \n, without the byte order mark. Offsets from the server
+    // are relative to this. Edits are applied to the raw contents, so line endings outside the
+    // edited spans are written back as they were, even if the file mixes them.
+    static class FileText {
+        final byte[] bytes;
+        final String raw;
+        final String text;
+        final Charset charset;
+        final boolean bom;
+        final String lineSeparator; // for line breaks in inserted text
+        // Offsets in text of the \n each \r\n was converted to
+        private final int[] crlfs;
+
+        FileText(FileObject fo) throws IOException {
+            bytes = fo.asBytes();
+            charset = FileEncodingQuery.getEncoding(fo);
+            String decoded = new String(bytes, charset);
+            bom = decoded.startsWith("\uFEFF");
+            raw = bom ? decoded.substring(1) : decoded;
+            lineSeparator = raw.contains("\r\n") ? "\r\n" : raw.contains("\r") ? "\r" : "\n";
+            if (lineSeparator.equals("\n")) {
+                text = raw;
+                crlfs = new int[0];
+                return;
+            }
+            StringBuilder sb = new StringBuilder(raw.length());
+            int[] positions = new int[16];
+            int count = 0;
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                if (c == '\r' && i + 1 < raw.length() && raw.charAt(i + 1) == '\n') {
+                    if (count == positions.length) {
+                        positions = Arrays.copyOf(positions, count * 2);
+                    }
+                    positions[count++] = sb.length();
+                    continue;
+                }
+                sb.append(c == '\r' ? '\n' : c);
+            }
+            text = sb.toString();
+            crlfs = Arrays.copyOf(positions, count);
+        }
+
+        private int rawOffset(int offset) {
+            int before = Arrays.binarySearch(crlfs, offset);
+            return offset + (before >= 0 ? before : -before - 1);
+        }
+
+        byte[] applyEdits(List<Edit> fileEdits) throws IOException {
+            check(text, fileEdits);
+            List<Edit> rawEdits = new ArrayList<>(fileEdits.size());
+            for (Edit edit: fileEdits) {
+                rawEdits.add(new Edit(rawOffset(edit.start), rawOffset(edit.end), null,
+                        lineSeparator.equals("\n") ? edit.newText : edit.newText.replace("\n", lineSeparator)));
+            }
+            return ((bom ? "\uFEFF" : "") + apply(raw, rawEdits)).getBytes(charset);
+        }
+    }
+
+    static void write(FileObject fo, byte[] bytes) throws IOException {
+        try (OutputStream os = fo.getOutputStream()) {
+            os.write(bytes);
+        }
+    }
+
+    /** The text the file would have after the change, for the refactoring preview. */
+    String getNewContent(FileObject fo) throws IOException {
+        BaseDocument doc = GsfUtilities.getDocument(fo, false);
+        String text;
+        if (doc != null) {
+            try {
+                text = doc.getText(0, doc.getLength());
+            } catch (BadLocationException e) {
+                throw new IOException(e);
+            }
+        } else {
+            text = new FileText(fo).text;
+        }
+        return apply(text, enabledEdits(fo));
+    }
+
+    @Override
+    public void commit() {
+        undo.clear();
+        // Check the open documents and compute the new contents of all the closed files first, so
+        // if any of them have changed since the edits were computed, nothing is modified.
+        for (File file: newFiles.keySet()) {
+            if (file.exists()) {
+                DialogDisplayer.getDefault().notify(new NotifyDescriptor.Message(
+                        "Could not create " + file + ": file already exists", NotifyDescriptor.ERROR_MESSAGE));
+                return;
+            }
+        }
+        final Map<FileObject, BaseDocument> docs = new LinkedHashMap<>();
+        Map<FileObject, Future<byte[][]>> closed = new LinkedHashMap<>();
+        for (final FileObject fo: edits.keySet()) {
+            BaseDocument doc = GsfUtilities.getDocument(fo, false);
+            if (doc != null) {
+                try {
+                    apply(doc.getText(0, doc.getLength()), enabledEdits(fo));
+                } catch (IOException | BadLocationException e) {
+                    DialogDisplayer.getDefault().notify(new NotifyDescriptor.Message(
+                            "Could not apply changes to " + fo.getPath() + ": " + e.getMessage(),
+                            NotifyDescriptor.ERROR_MESSAGE));
+                    return;
+                }
+                docs.put(fo, doc);
+                continue;
+            }
+            final List<Edit> fileEdits = enabledEdits(fo);
+            closed.put(fo, RP.submit(new Callable<byte[][]>() {
+                @Override
+                public byte[][] call() throws IOException {
+                    FileText ft = new FileText(fo);
+                    return new byte[][] { ft.bytes, ft.applyEdits(fileEdits) };
+                }
+            }));
+        }
+        final Map<FileObject, byte[][]> contents = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<FileObject, Future<byte[][]>> entry: closed.entrySet()) {
+                contents.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            DialogDisplayer.getDefault().notify(new NotifyDescriptor.Message(
+                    "Could not apply changes: " + cause.getMessage(), NotifyDescriptor.ERROR_MESSAGE));
+            return;
+        }
+
+        // Open documents are edited in place, last edit first so earlier offsets stay valid.
+        for (Map.Entry<FileObject, BaseDocument> entry: docs.entrySet()) {
+            final BaseDocument doc = entry.getValue();
+            final List<Edit> fileEdits = enabledEdits(entry.getKey());
+            final List<Edit> inverse = new ArrayList<>();
+            doc.runAtomic(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int sizeChange = 0;
+                        for (Edit edit: fileEdits) {
+                            String oldText = doc.getText(edit.start, edit.end - edit.start);
+                            inverse.add(new Edit(edit.start + sizeChange,
+                                    edit.start + sizeChange + edit.newText.length(), null, oldText));
+                            sizeChange += edit.newText.length() - oldText.length();
+                        }
+                        for (int i = fileEdits.size() - 1; i >= 0; i--) {
+                            Edit edit = fileEdits.get(i);
+                            doc.replace(edit.start, edit.end - edit.start, edit.newText, null);
+                        }
+                    } catch (BadLocationException e) {
+                        TSService.log.log(Level.WARNING, null, e);
+                    }
+                }
+            });
+            undo.put(entry.getKey(), inverse);
+        }
+
+        // Closed files are written in parallel. If any write or file creation fails, everything
+        // done so far is rolled back, so the change is never left half applied.
+        List<Future<?>> writes = new ArrayList<>();
+        for (final Map.Entry<FileObject, byte[][]> entry: contents.entrySet()) {
+            undo.put(entry.getKey(), entry.getValue()[0]);
+            writes.add(RP.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    write(entry.getKey(), entry.getValue()[1]);
+                    return null;
+                }
+            }));
+        }
+        Throwable failure = waitFor(writes);
+        if (failure != null) {
+            rollbackAfterFailure("Could not apply changes: " + failure.getMessage());
+            return;
+        }
+
+        for (Map.Entry<File, String> entry: newFiles.entrySet()) {
+            try {
+                File missing = null;
+                for (File dir = entry.getKey().getParentFile(); dir != null && ! dir.exists(); dir = dir.getParentFile()) {
+                    missing = dir;
+                }
+                if (missing != null) {
+                    // Directories made for the file are removed again on rollback
+                    undo.put(FileUtil.createFolder(missing), CREATED);
+                }
+                FileObject fo = FileUtil.createData(entry.getKey());
+                undo.put(fo, CREATED);
+                write(fo, entry.getValue().getBytes(FileEncodingQuery.getEncoding(fo)));
+            } catch (IOException e) {
+                rollbackAfterFailure("Could not create " + entry.getKey() + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void rollbackAfterFailure(String message) {
+        rollback();
+        DialogDisplayer.getDefault().notify(new NotifyDescriptor.Message(
+                message + "\nAll changes have been undone.", NotifyDescriptor.ERROR_MESSAGE));
+    }
+
+    @Override
+    public void rollback() {
+        List<Future<?>> writes = new ArrayList<>();
+        for (final Map.Entry<FileObject, Object> entry: undo.entrySet()) {
+            if (entry.getValue() == CREATED) {
+                if (! entry.getKey().isValid()) {
+                    continue; // was in a created directory, already deleted
+                }
+                try {
+                    entry.getKey().delete();
+                } catch (IOException e) {
+                    TSService.log.log(Level.WARNING, null, e);
+                }
+                continue;
+            }
+            if (entry.getValue() instanceof byte[]) {
+                writes.add(RP.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        write(entry.getKey(), (byte[]) entry.getValue());
+                        return null;
+                    }
+                }));
+                continue;
+            }
+            final BaseDocument doc = GsfUtilities.getDocument(entry.getKey(), false);
+            final List<Edit> inverse = (List<Edit>) entry.getValue();
+            if (doc == null) {
+                continue;
+            }
+            doc.runAtomic(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = inverse.size() - 1; i >= 0; i--) {
+                            Edit edit = inverse.get(i);
+                            doc.replace(edit.start, edit.end - edit.start, edit.newText, null);
+                        }
+                    } catch (BadLocationException e) {
+                        TSService.log.log(Level.WARNING, null, e);
+                    }
+                }
+            });
+        }
+        Throwable failure = waitFor(writes);
+        if (failure != null) {
+            DialogDisplayer.getDefault().notify(new NotifyDescriptor.Message(
+                    "Could not undo changes: " + failure.getMessage(), NotifyDescriptor.ERROR_MESSAGE));
+        }
+        undo.clear();
+    }
+
+    // Waits for all the tasks, even after one fails, and returns the first failure if any
+    private static Throwable waitFor(List<Future<?>> tasks) {
+        Throwable failure = null;
+        for (Future<?> task: tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                TSService.log.log(Level.WARNING, null, cause);
+                if (failure == null) {
+                    failure = cause;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * A refactoring preview element for one edit. Nothing about the file is loaded until the
+     * element is actually shown.
+     */
+    class Element extends SimpleRefactoringElementImplementation {
+        final FileObject fo;
+        final Edit edit;
+        final String displayText;
+        private PositionBounds bounds;
+
+        Element(FileObject fo, Edit edit, String displayText) {
+            this.fo = fo;
+            this.edit = edit;
+            this.displayText = displayText;
+        }
+
+        @Override
+        public String getText() { return displayText; }
+        @Override
+        public String getDisplayText() { return displayText; }
+        @Override
+        public void performChange() {}
+        @Override
+        public Lookup getLookup() { return Lookup.EMPTY; }
+        @Override
+        public FileObject getParentFile() { return fo; }
+
+        @Override
+        public synchronized PositionBounds getPosition() {
+            if (bounds == null) {
+                CloneableEditorSupport ces = GsfUtilities.findCloneableEditorSupport(fo);
+                bounds = new PositionBounds(
+                        ces.createPositionRef(edit.start, Position.Bias.Forward),
+                        ces.createPositionRef(edit.end, Position.Bias.Forward));
+            }
+            return bounds;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            edit.enabled = enabled;
+            super.setEnabled(enabled);
+        }
+
+        @Override
+        protected String getNewFileContent() {
+            try {
+                return getNewContent(fo);
+            } catch (IOException e) {
+                TSService.log.log(Level.WARNING, null, e);
+                return null;
+            }
+        }
+    }
+}
@@ -15,10 +15,21 @@
  */
 package netbeanstypescript;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import org.json.simple.JSONObject;
+import org.netbeans.api.editor.settings.SimpleValueNames;
 import org.netbeans.editor.BaseDocument;
 import org.netbeans.modules.csl.api.Formatter;
 import org.netbeans.modules.csl.api.OffsetRange;
@@ -27,7 +38,8 @@ import org.netbeans.modules.csl.spi.ParserResult;
 import org.netbeans.modules.editor.indent.api.IndentUtils;
 import org.netbeans.modules.editor.indent.spi.CodeStylePreferences;
 import org.netbeans.modules.editor.indent.spi.Context;
-import org.openide.util.Exceptions;
+import org.openide.filesystems.FileObject;
+import org.openide.util.WeakListeners;
 
 /**
  *
@@ -35,17 +47,109 @@ import org.openide.util.Exceptions;
  */
 public class TSFormatter implements Formatter {
 
-    public static JSONObject getFormattingSettings(BaseDocument doc) {
+    /**
+     * A set of ts.FormatCodeSettings, registered with the server under an ID so that calls can
+     * refer to it as formatSettings[id] instead of sending the whole object every time.
+     * Identical settings share one ID.
+     */
+    static final class FormatSettings {
+        final int id;
+        final JSONObject json;
+
+        private FormatSettings(int id, JSONObject json) {
+            this.id = id;
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return "formatSettings[" + id + "]";
+        }
+    }
+
+    private static final Map<JSONObject, FormatSettings> settingsIds = new HashMap<>();
+
+    private static synchronized FormatSettings intern(JSONObject json) {
+        FormatSettings settings = settingsIds.get(json);
+        if (settings == null) {
+            settingsIds.put(json, settings = new FormatSettings(settingsIds.size(), json));
+        }
+        return settings;
+    }
+
+    // The settings last computed for each document, stale once any of the preferences they were
+    // read from change. This must not refer to the document, which is the weak key it's cached by.
+    private static class CachedSettings implements PreferenceChangeListener {
+        final FormatSettings settings;
+        final List<Object> listeners = new ArrayList<>(); // keeps the weak listeners alive
+        volatile boolean stale;
+
+        CachedSettings(FormatSettings settings) {
+            this.settings = settings;
+        }
+
+        void listen(Preferences prefs) {
+            PreferenceChangeListener weak = WeakListeners.create(PreferenceChangeListener.class, this, prefs);
+            prefs.addPreferenceChangeListener(weak);
+            listeners.add(weak);
+        }
+
+        @Override
+        public void preferenceChange(PreferenceChangeEvent evt) {
+            stale = true;
+        }
+    }
+
+    private static final Map<Document, CachedSettings> cachedSettings = new WeakHashMap<>();
+
+    public static FormatSettings getFormattingSettings(BaseDocument doc) {
+        synchronized (cachedSettings) {
+            CachedSettings cached = cachedSettings.get(doc);
+            if (cached != null && ! cached.stale) {
+                return cached.settings;
+            }
+        }
+        Preferences docPrefs = CodeStylePreferences.get(doc).getPreferences();
+        Preferences jsPrefs = CodeStylePreferences.get(doc, "text/javascript").getPreferences();
+        Preferences javaPrefs = CodeStylePreferences.get(doc, "text/x-java").getPreferences();
+        CachedSettings cached = new CachedSettings(intern(readFormattingSettings(
+                IndentUtils.indentLevelSize(doc), IndentUtils.tabSize(doc), IndentUtils.isExpandTabs(doc),
+                jsPrefs, javaPrefs)));
+        cached.listen(docPrefs);
+        cached.listen(jsPrefs);
+        cached.listen(javaPrefs);
+        synchronized (cachedSettings) {
+            cachedSettings.put(doc, cached);
+        }
+        return cached.settings;
+    }
+
+    /** The settings for a file that isn't open, read from the code style that applies to it. */
+    public static FormatSettings getFormattingSettings(FileObject fo) {
+        Preferences prefs = CodeStylePreferences.get(fo, "text/typescript").getPreferences();
+        int tabSize = prefs.getInt(SimpleValueNames.TAB_SIZE, 8);
+        boolean expandTabs = prefs.getBoolean(SimpleValueNames.EXPAND_TABS, true);
+        // Same fallback as IndentUtils.indentLevelSize
+        int indentSize = prefs.getInt(SimpleValueNames.INDENT_SHIFT_WIDTH, -1);
+        if (indentSize < 0) {
+            indentSize = expandTabs ? prefs.getInt(SimpleValueNames.SPACES_PER_TAB, 4) : tabSize;
+        }
+        return intern(readFormattingSettings(indentSize, tabSize, expandTabs,
+                CodeStylePreferences.get(fo, "text/javascript").getPreferences(),
+                CodeStylePreferences.get(fo, "text/x-java").getPreferences()));
+    }
+
+    private static JSONObject readFormattingSettings(int indentSize, int tabSize, boolean expandTabs,
+            Preferences jsPrefs, Preferences javaPrefs) {
         JSONObject settings = new JSONObject();
-        settings.put("indentSize", IndentUtils.indentLevelSize(doc));
-        settings.put("tabSize", IndentUtils.tabSize(doc));
+        settings.put("indentSize", indentSize);
+        settings.put("tabSize", tabSize);
         settings.put("newLineCharacter", "\n");
-        settings.put("convertTabsToSpaces", IndentUtils.isExpandTabs(doc));
+        settings.put("convertTabsToSpaces", expandTabs);
         settings.put("indentStyle", 2);
         // TODO: The JS editor's settings don't correspond well with ts.FormatCodeSettings.
         // Should probably create a separate text/typescript style preferences dialog, so
         // it's clear to the user what can and can't be changed.
-        Preferences jsPrefs = CodeStylePreferences.get(doc, "text/javascript").getPreferences();
         settings.put("insertSpaceAfterCommaDelimiter",
                 jsPrefs.getBoolean("spaceAfterComma", true));
         settings.put("insertSpaceAfterSemicolonInForStatements",
@@ -68,8 +172,7 @@ public class TSFormatter implements Formatter {
                 jsPrefs.getBoolean("spaceWithinBraces", false));
         settings.put("insertSpaceAfterTypeAssertion",
                 // JS doesn't have typecasts...
-                CodeStylePreferences.get(doc, "text/x-java").getPreferences()
-                        .getBoolean("spaceAfterTypeCast", true));
+                javaPrefs.getBoolean("spaceAfterTypeCast", true));
         settings.put("placeOpenBraceOnNewLineForFunctions",
                 jsPrefs.get("functionDeclBracePlacement", "").startsWith("NEW"));
         settings.put("placeOpenBraceOnNewLineForControlBlocks",
@@ -92,28 +195,90 @@ public class TSFormatter implements Formatter {
                 try {
                     applyEdits(doc, edits);
                 } catch (BadLocationException ex) {
-                    Exceptions.printStackTrace(ex);
+                    // Overlapping edits are rejected before anything is changed
+                    TSService.log.log(Level.INFO, "Formatting edits not applied: {0}", ex.getMessage());
                 }
             }
         });
     }
 
+    private static final Comparator<JSONObject> byStart = new Comparator<JSONObject>() {
+        @Override
+        public int compare(JSONObject a, JSONObject b) {
+            JSONObject spanA = (JSONObject) a.get("span"), spanB = (JSONObject) b.get("span");
+            long startA = ((Number) spanA.get("start")).longValue();
+            long startB = ((Number) spanB.get("start")).longValue();
+            return startA != startB ? Long.compare(startA, startB)
+                    : Long.compare(((Number) spanA.get("length")).longValue(),
+                            ((Number) spanB.get("length")).longValue());
+        }
+    };
+
+    /**
+     * Applies a list of TS TextChanges, all relative to the current text of the document, and
+     * returns the range of the edited region afterwards (or null if there were no edits). The
+     * edits may come in any order, but must not overlap; if any do, nothing is changed and a
+     * BadLocationException is thrown.
+     */
     public static OffsetRange applyEdits(BaseDocument doc, Object edits) throws BadLocationException {
-        int sizeChange = 0;
-        int editsStart = -1, editsEnd = -1;
-        for (JSONObject edit: (List<JSONObject>) edits) {
+        List<JSONObject> list = new ArrayList<>((List<JSONObject>) edits);
+        int n = list.size();
+        if (n == 0) {
+            return null;
+        }
+        // Stable, so insertions at the same offset keep their order
+        Collections.sort(list, byStart);
+        int[] starts = new int[n], ends = new int[n];
+        String[] texts = new String[n];
+        for (int i = 0; i < n; i++) {
+            JSONObject edit = list.get(i);
             JSONObject span = (JSONObject) edit.get("span");
-            int start = ((Number) span.get("start")).intValue() + sizeChange;
-            int length = ((Number) span.get("length")).intValue();
-            String newText = (String) edit.get("newText");
-            doc.replace(start, length, newText, null);
-            sizeChange += newText.length() - length;
-            if (editsStart == -1) {
-                editsStart = start;
+            starts[i] = ((Number) span.get("start")).intValue();
+            ends[i] = starts[i] + ((Number) span.get("length")).intValue();
+            texts[i] = (String) edit.get("newText");
+            if (i > 0 && starts[i] < ends[i - 1]) {
+                throw new BadLocationException("Overlapping edits", starts[i]);
+            }
+        }
+        int regionStart = starts[0], regionEnd = 0;
+        for (int end: ends) regionEnd = Math.max(regionEnd, end);
+        String region = doc.getText(regionStart, regionEnd - regionStart);
+
+        // Each edit is narrowed to the part that actually changes, and edits that then touch are
+        // merged into one replacement. Unchanged text is never replaced, so positions in it, like
+        // the caret, stay where they are.
+        List<int[]> spans = new ArrayList<>();
+        List<StringBuilder> replacements = new ArrayList<>();
+        int sizeChange = 0;
+        for (int i = 0; i < n; i++) {
+            String oldText = region.substring(starts[i] - regionStart, ends[i] - regionStart);
+            String newText = texts[i];
+            sizeChange += newText.length() - oldText.length();
+            int prefix = 0, maxPrefix = Math.min(oldText.length(), newText.length());
+            while (prefix < maxPrefix && oldText.charAt(prefix) == newText.charAt(prefix)) prefix++;
+            int suffix = 0, maxSuffix = maxPrefix - prefix;
+            while (suffix < maxSuffix && oldText.charAt(oldText.length() - 1 - suffix)
+                    == newText.charAt(newText.length() - 1 - suffix)) suffix++;
+            int start = starts[i] + prefix, end = ends[i] - suffix;
+            String text = newText.substring(prefix, newText.length() - suffix);
+            if (start == end && text.isEmpty()) {
+                continue;
             }
-            editsEnd = start + newText.length();
+            int[] last = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+            if (last != null && start == last[1]) {
+                replacements.get(replacements.size() - 1).append(text);
+                last[1] = end;
+            } else {
+                spans.add(new int[] { start, end });
+                replacements.add(new StringBuilder(text));
+            }
+        }
+        // Last first, so the offsets of the earlier ones stay valid
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            int[] span = spans.get(i);
+            doc.replace(span[0], span[1] - span[0], replacements.get(i).toString(), null);
         }
-        return editsStart >= 0 ? new OffsetRange(editsStart, editsEnd) : null;
+        return new OffsetRange(regionStart, regionEnd + sizeChange);
     }
 
     @Override
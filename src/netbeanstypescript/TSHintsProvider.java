@@ -15,19 +15,37 @@
  */
 package netbeanstypescript;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import javax.swing.text.BadLocationException;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
 import org.json.simple.JSONObject;
+import org.netbeans.api.editor.EditorRegistry;
+import org.netbeans.api.progress.ProgressUtils;
 import org.netbeans.editor.BaseDocument;
+import org.netbeans.lib.editor.util.swing.DocumentUtilities;
 import org.netbeans.modules.csl.api.*;
 import org.netbeans.modules.csl.api.Error;
+import org.netbeans.modules.refactoring.api.Problem;
+import org.netbeans.modules.refactoring.api.RefactoringSession;
 import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
 import org.openide.filesystems.FileObject;
-import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
 
 /**
  *
@@ -38,54 +56,249 @@ public class TSHintsProvider implements HintsProvider {
     @Override
     public void computeHints(HintsManager manager, RuleContext context, List<Hint> hints) {}
 
-    public static void doFixes(final BaseDocument doc, FileObject fileObj, final List<JSONObject> changes) {
+    /**
+     * Applies a list of TS FileTextChanges, which may touch any number of files (and create new
+     * ones), as one change set. Files that aren't open aren't opened. The change set is performed
+     * as a refactoring, so Refactor > Undo reverts all of it, closed files included. Since closed
+     * files are read and written, this must not be called on the EDT.
+     */
+    public static void doFixes(FileObject fileObj, String description, List<JSONObject> changes) {
+        TSChangeSet changeSet = new TSChangeSet();
         for (JSONObject change: changes) {
-            Object fileName = change.get("fileName");
-            if (! fileName.equals(fileObj.getPath())) {
-                String error = "Unimplemented: code fix involves changes to a different file " + fileName;
+            String fileName = (String) change.get("fileName");
+            if (Boolean.TRUE.equals(change.get("isNewFile"))) {
+                changeSet.addNewFile(new File(fileName), change.get("textChanges"));
+                continue;
+            }
+            FileObject fo = fileName.equals(fileObj.getPath()) ? fileObj : TSService.findAnyFileObject(fileName);
+            if (fo == null) {
+                String error = "Code fix involves changes to a nonexistent file " + fileName;
                 DialogDisplayer.getDefault().notify(
                         new NotifyDescriptor.Message(error, NotifyDescriptor.ERROR_MESSAGE));
                 return;
             }
+            changeSet.addTextChanges(fo, change.get("textChanges"));
+        }
+        RefactoringSession session = RefactoringSession.create(description);
+        Problem problem = new TSRefactoring.TSCodeFixRefactoring(description, changeSet).prepare(session);
+        if (problem == null || ! problem.isFatal()) {
+            problem = session.doRefactoring(false);
         }
-        doc.runAtomic(new Runnable() {
+        if (problem != null) {
+            DialogDisplayer.getDefault().notify(
+                    new NotifyDescriptor.Message(problem.getMessage(), NotifyDescriptor.ERROR_MESSAGE));
+        }
+    }
+
+    private interface ChangesProvider {
+        /** The FileTextChanges to apply, or null if there's nothing to do. */
+        List<JSONObject> getChanges() throws TSService.TSException;
+    }
+
+    // Gets the changes for a fix and applies them off the EDT, with a progress dialog if that
+    // takes a while.
+    private static void implementOffEDT(final FileObject fileObj, final String description,
+            final ChangesProvider provider) {
+        final AtomicBoolean cancel = new AtomicBoolean();
+        ProgressUtils.runOffEventDispatchThread(new Runnable() {
             @Override
             public void run() {
+                List<JSONObject> changes;
                 try {
-                    for (JSONObject change: changes) {
-                        TSFormatter.applyEdits(doc, change.get("textChanges"));
-                    }
-                } catch (BadLocationException ex) {
-                    Exceptions.printStackTrace(ex);
+                    changes = provider.getChanges();
+                } catch (TSService.TSException e) {
+                    e.notifyLater();
+                    return;
+                }
+                if (changes == null || cancel.get()) {
+                    return;
                 }
+                doFixes(fileObj, description, changes);
             }
-        });
+        }, description, cancel, false);
     }
 
-    @Override
-    public void computeSuggestions(HintsManager manager, final RuleContext context, List<Hint> suggestions, int caretOffset) {
-        // Group the possibly-fixable errors by span and dedupe, as getCodeFixesAtPosition requires
+    /**
+     * Applies a fix to every error of its kind in the file or the whole project at once. The server
+     * combines all the fixes into one set of changes, so this is a single call however many errors
+     * there are.
+     */
+    static class FixAll implements HintFix {
+        final FileObject fileObj;
+        final BaseDocument doc;
+        final Object fixId;
+        final String description;
+        final String scope;
+
+        FixAll(FileObject fileObj, BaseDocument doc, Object fixId, String description, String scope) {
+            this.fileObj = fileObj;
+            this.doc = doc;
+            this.fixId = fixId;
+            this.description = description;
+            this.scope = scope;
+        }
+
+        @Override
+        public String getDescription() { return description; }
+        @Override
+        public boolean isSafe() { return false; }
+        @Override
+        public boolean isInteractive() { return false; }
+
+        @Override
+        public void implement() {
+            implementOffEDT(fileObj, description, new ChangesProvider() {
+                @Override
+                public List<JSONObject> getChanges() throws TSService.TSException {
+                    JSONObject res = (JSONObject) TSService.callEx("getCombinedCodeFix", fileObj,
+                            fixId,
+                            scope, TSFormatter.getFormattingSettings(doc));
+                    return res != null ? (List<JSONObject>) res.get("changes") : null;
+                }
+            });
+        }
+    }
+
+    // Group the possibly-fixable errors overlapping a range by span and dedupe, as
+    // getCodeFixesAtPosition requires
+    private static LinkedHashMap<OffsetRange, LinkedHashSet<Integer>> fixableErrors(
+            List<? extends Error> errors, Set<Integer> supportedCodes, int start, int end) {
         LinkedHashMap<OffsetRange, LinkedHashSet<Integer>> errsBySpan = new LinkedHashMap<>();
-        for (Error err: context.parserResult.getDiagnostics()) {
+        for (Error err: errors) {
             int errStart = err.getStartPosition(), errEnd = err.getEndPosition();
-            if (err.getKey() != null && caretOffset >= errStart && caretOffset <= errEnd) {
+            if (err.getKey() != null && end >= errStart && start <= errEnd) {
+                Integer code = Integer.parseInt(err.getKey());
+                if (supportedCodes != null && ! supportedCodes.contains(code)) {
+                    continue;
+                }
                 OffsetRange span = new OffsetRange(errStart, errEnd);
                 LinkedHashSet<Integer> errCodes = errsBySpan.get(span);
                 if (errCodes == null) {
                     errsBySpan.put(span, errCodes = new LinkedHashSet<>());
                 }
-                errCodes.add(Integer.parseInt(err.getKey()));
+                errCodes.add(code);
+            }
+        }
+        return errsBySpan;
+    }
+
+    private static Object getCodeFixes(FileObject fileObj, BaseDocument doc, OffsetRange span,
+            Set<Integer> errCodes, boolean ifIdle) {
+        Object[] args = { span.getStart(), span.getEnd(),
+                errCodes, // amazingly, LinkedHashSet<Integer>'s toString is valid JSON
+                TSFormatter.getFormattingSettings(doc) };
+        return ifIdle ? TSService.callIfIdle("getCodeFixesAtPosition", fileObj, args)
+                : TSService.call("getCodeFixesAtPosition", fileObj, args);
+    }
+
+    // Code fixes fetched ahead of time for the errors on screen, valid for one document version.
+    private static class PrefetchedFixes {
+        final int version;
+        final Map<OffsetRange, Object> fixesBySpan = new ConcurrentHashMap<>();
+        PrefetchedFixes(int version) { this.version = version; }
+    }
+    private static final Map<Document, PrefetchedFixes> prefetched =
+            Collections.synchronizedMap(new WeakHashMap<Document, PrefetchedFixes>());
+    private static final RequestProcessor prefetchRP = new RequestProcessor("TS code fix prefetch", 1, true);
+    // How long prefetching waits before trying again when the service is in use
+    private static final int PREFETCH_RETRY_DELAY = 200;
+    // The error codes TS has fixes for; errors with other codes are never worth asking about
+    private static volatile Set<Integer> supportedCodes;
+
+    private static Set<Integer> getSupportedCodes(FileObject fileObj) {
+        Set<Integer> codes = supportedCodes;
+        if (codes == null) {
+            Object res = TSService.call("getSupportedCodeFixes", fileObj);
+            if (res == null) {
+                return null;
+            }
+            codes = new HashSet<>();
+            for (Object code: (List<?>) res) {
+                codes.add(Integer.valueOf(code.toString()));
+            }
+            supportedCodes = codes;
+        }
+        return codes;
+    }
+
+    // Once the errors for a file are known, fetch the fixes for the ones in the visible part of
+    // the editor in the background, so suggestions for them come up immediately. Each fix is only
+    // fetched while the service is otherwise idle, so prefetching never delays a user action.
+    private static void prefetchFixes(final FileObject fileObj, final BaseDocument doc,
+            final List<? extends Error> errors) {
+        final int version = DocumentUtilities.getDocumentVersion(doc);
+        PrefetchedFixes existing = prefetched.get(doc);
+        if (existing != null && existing.version == version) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JTextComponent comp = EditorRegistry.lastFocusedComponent();
+                if (comp == null || comp.getDocument() != doc) {
+                    return;
+                }
+                Rectangle visible = comp.getVisibleRect();
+                final int start = comp.viewToModel(visible.getLocation());
+                final int end = comp.viewToModel(new Point(visible.x + visible.width, visible.y + visible.height));
+                prefetchRP.post(new Runnable() {
+                    PrefetchedFixes cache;
+                    List<Map.Entry<OffsetRange, LinkedHashSet<Integer>>> pending;
+                    int next;
+
+                    @Override
+                    public void run() {
+                        if (cache == null) {
+                            Set<Integer> codes = getSupportedCodes(fileObj);
+                            if (codes == null) {
+                                return;
+                            }
+                            cache = new PrefetchedFixes(version);
+                            prefetched.put(doc, cache);
+                            pending = new ArrayList<>(fixableErrors(errors, codes, start, end).entrySet());
+                        }
+                        for (; next < pending.size(); next++) {
+                            if (DocumentUtilities.getDocumentVersion(doc) != version
+                                    || prefetched.get(doc) != cache) {
+                                return; // superseded
+                            }
+                            Map.Entry<OffsetRange, LinkedHashSet<Integer>> entry = pending.get(next);
+                            Object fixes = getCodeFixes(fileObj, doc, entry.getKey(), entry.getValue(), true);
+                            if (fixes == TSService.BUSY) {
+                                // Let the other call go first, and try this one again later
+                                prefetchRP.post(this, PREFETCH_RETRY_DELAY, Thread.MIN_PRIORITY);
+                                return;
+                            }
+                            if (fixes != null) {
+                                cache.fixesBySpan.put(entry.getKey(), fixes);
+                            }
+                        }
+                    }
+                }, 0, Thread.MIN_PRIORITY);
             }
+        });
+    }
+
+    @Override
+    public void computeSuggestions(HintsManager manager, final RuleContext context, List<Hint> suggestions, int caretOffset) {
+        final FileObject fileObj = context.parserResult.getSnapshot().getSource().getFileObject();
+        PrefetchedFixes cache = prefetched.get(context.doc);
+        if (cache != null && cache.version != DocumentUtilities.getDocumentVersion(context.doc)) {
+            cache = null;
         }
+        LinkedHashMap<OffsetRange, LinkedHashSet<Integer>> errsBySpan = fixableErrors(
+                context.parserResult.getDiagnostics(), supportedCodes, caretOffset, caretOffset);
         for (OffsetRange span: errsBySpan.keySet()) {
-            final FileObject fileObj = context.parserResult.getSnapshot().getSource().getFileObject();
-            Object fixes = TSService.call("getCodeFixesAtPosition", fileObj, span.getStart(), span.getEnd(),
-                    errsBySpan.get(span), // amazingly, LinkedHashSet<Integer>'s toString is valid JSON
-                    TSFormatter.getFormattingSettings(context.doc));
+            Object fixes = cache != null ? cache.fixesBySpan.get(span) : null;
+            if (fixes == null) {
+                fixes = getCodeFixes(fileObj, context.doc, span, errsBySpan.get(span), false);
+            }
             if (fixes == null) {
                 continue;
             }
             List<HintFix> hintFixes = new ArrayList<>();
+            List<HintFix> fixAlls = new ArrayList<>();
+            Set<Object> fixIds = new HashSet<>();
             for (final JSONObject fix: (List<JSONObject>) fixes) {
                 hintFixes.add(new HintFix() {
                     @Override
@@ -94,14 +307,27 @@ public class TSHintsProvider implements HintsProvider {
                     }
                     @Override
                     public void implement() {
-                        doFixes(context.doc, fileObj, (List<JSONObject>) fix.get("changes"));
+                        implementOffEDT(fileObj, getDescription(), new ChangesProvider() {
+                            @Override
+                            public List<JSONObject> getChanges() {
+                                return (List<JSONObject>) fix.get("changes");
+                            }
+                        });
                     }
                     @Override
                     public boolean isSafe() { return false; }
                     @Override
                     public boolean isInteractive() { return false; }
                 });
+                Object fixId = fix.get("fixId");
+                if (fixId != null && fix.get("fixAllDescription") != null && fixIds.add(fixId)) {
+                    String description = (String) fix.get("fixAllDescription");
+                    fixAlls.add(new FixAll(fileObj, context.doc, fixId, description + " in this file", "file"));
+                    fixAlls.add(new FixAll(fileObj, context.doc, fixId, description + " in the project", "project"));
+                }
             }
+            int numFixes = hintFixes.size();
+            hintFixes.addAll(fixAlls);
             if (! hintFixes.isEmpty()) {
                 Rule rule = new Rule() {
                     @Override public boolean appliesTo(RuleContext rc) { return true; }
@@ -110,18 +336,96 @@ public class TSHintsProvider implements HintsProvider {
                     @Override public HintSeverity getDefaultSeverity() { return HintSeverity.ERROR; }
                 };
                 suggestions.add(new Hint(rule,
-                        hintFixes.size() + (hintFixes.size() == 1 ? " code fix" : " code fixes") + " available",
+                        numFixes + (numFixes == 1 ? " code fix" : " code fixes") + " available",
                         fileObj, span, hintFixes, 0));
             }
         }
         computeSelectionHints(manager, context, suggestions, caretOffset, caretOffset);
     }
 
+    // Applicable refactors are queried in the background, only once the caret or selection has
+    // stayed put for a moment, so moving around the file doesn't queue up server calls ahead of
+    // typing and completion. Results are cached per document version and span; when a query
+    // finishes, the hints are refreshed to show them.
+    private static final int REFACTOR_QUERY_DELAY = 250;
+    private static final RequestProcessor refactorRP = new RequestProcessor("TS applicable refactors", 1, true);
+    private static final Map<Document, RefactorQueries> refactorQueries = new WeakHashMap<>();
+
+    private static class RefactorQueries implements Runnable {
+        final RequestProcessor.Task task = refactorRP.create(this);
+        final Map<OffsetRange, Object> bySpan = new HashMap<>();
+        int version = -1;
+        // The latest query asked for; any earlier one still waiting is superseded
+        HintsManager manager;
+        RuleContext context;
+        FileObject fileObj;
+        OffsetRange span;
+
+        @Override
+        public void run() {
+            HintsManager manager;
+            RuleContext context;
+            FileObject fileObj;
+            OffsetRange span;
+            int version;
+            synchronized (refactorQueries) {
+                manager = this.manager;
+                context = this.context;
+                fileObj = this.fileObj;
+                span = this.span;
+                version = this.version;
+                this.manager = null;
+                this.context = null;
+            }
+            if (context == null || DocumentUtilities.getDocumentVersion(context.doc) != version) {
+                return;
+            }
+            Object refactors = TSService.call("getApplicableRefactors", fileObj, span.getStart(), span.getEnd());
+            synchronized (refactorQueries) {
+                if (this.version != version) {
+                    return;
+                }
+                bySpan.put(span, refactors);
+                if (this.context != null) {
+                    return; // the caret has already moved on
+                }
+            }
+            if (refactors != null && ! ((List<?>) refactors).isEmpty()) {
+                manager.refreshHints(context);
+            }
+        }
+    }
+
+    private static Object getApplicableRefactors(HintsManager manager, RuleContext context,
+            FileObject fileObj, int start, int end) {
+        int version = DocumentUtilities.getDocumentVersion(context.doc);
+        OffsetRange span = new OffsetRange(start, end);
+        synchronized (refactorQueries) {
+            RefactorQueries queries = refactorQueries.get(context.doc);
+            if (queries == null) {
+                refactorQueries.put(context.doc, queries = new RefactorQueries());
+            }
+            if (queries.version != version) {
+                queries.version = version;
+                queries.bySpan.clear();
+            }
+            if (queries.bySpan.containsKey(span)) {
+                return queries.bySpan.get(span);
+            }
+            queries.manager = manager;
+            queries.context = context;
+            queries.fileObj = fileObj;
+            queries.span = span;
+            queries.task.schedule(REFACTOR_QUERY_DELAY);
+            return null;
+        }
+    }
+
     @Override
     public void computeSelectionHints(HintsManager manager, final RuleContext context,
             List<Hint> suggestions, final int start, final int end) {
         final FileObject fileObj = context.parserResult.getSnapshot().getSource().getFileObject();
-        Object refactors = TSService.call("getApplicableRefactors", fileObj, start, end);
+        Object refactors = getApplicableRefactors(manager, context, fileObj, start, end);
         if (refactors == null) {
             return;
         }
@@ -133,16 +437,21 @@ public class TSHintsProvider implements HintsProvider {
                     public String getDescription() { return (String) action.get("description"); }
                     @Override
                     public void implement() {
-                        JSONObject edits = (JSONObject) TSService.call("getEditsForRefactor", fileObj,
-                                TSFormatter.getFormattingSettings(context.doc),
-                                start, end, refactor.get("name"), action.get("name"));
-                        if (edits == null) {
-                            String error = "getEditsForRefactor returned null";
-                            DialogDisplayer.getDefault().notify(
-                                    new NotifyDescriptor.Message(error, NotifyDescriptor.ERROR_MESSAGE));
-                            return;
-                        }
-                        doFixes(context.doc, fileObj, (List<JSONObject>) edits.get("edits"));
+                        implementOffEDT(fileObj, getDescription(), new ChangesProvider() {
+                            @Override
+                            public List<JSONObject> getChanges() {
+                                JSONObject edits = (JSONObject) TSService.call("getEditsForRefactor", fileObj,
+                                        TSFormatter.getFormattingSettings(context.doc),
+                                        start, end, refactor.get("name"), action.get("name"));
+                                if (edits == null) {
+                                    String error = "getEditsForRefactor returned null";
+                                    DialogDisplayer.getDefault().notify(
+                                            new NotifyDescriptor.Message(error, NotifyDescriptor.ERROR_MESSAGE));
+                                    return null;
+                                }
+                                return (List<JSONObject>) edits.get("edits");
+                            }
+                        });
                     }
                     @Override
                     public boolean isSafe() { return false; }
@@ -166,8 +475,12 @@ public class TSHintsProvider implements HintsProvider {
     public void computeErrors(HintsManager manager, RuleContext context, List<Hint> hints, List<Error> unhandled) {
         // There may be relevant code fixes, but we can't query code fixes without fully computing
         // their diffs, which is potentially too expensive to do for all errors in the file.
-        // So we provide code fixes as "suggestions" instead.
-        unhandled.addAll(context.parserResult.getDiagnostics());
+        // So we provide code fixes as "suggestions" instead, prefetching the ones on screen.
+        List<? extends Error> errors = context.parserResult.getDiagnostics();
+        unhandled.addAll(errors);
+        if (! errors.isEmpty()) {
+            prefetchFixes(context.parserResult.getSnapshot().getSource().getFileObject(), context.doc, errors);
+        }
     }
 
     @Override
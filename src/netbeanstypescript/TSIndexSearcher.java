@@ -0,0 +1,315 @@
+/*
+ * Copyright 2026 Everlaw
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package netbeanstypescript;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.Icon;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.netbeans.api.project.FileOwnerQuery;
+import org.netbeans.api.project.Project;
+import org.netbeans.api.project.ProjectUtils;
+import org.netbeans.modules.csl.api.ElementHandle;
+import org.netbeans.modules.csl.api.IndexSearcher;
+import org.netbeans.modules.csl.api.OffsetRange;
+import org.netbeans.modules.csl.api.UiUtils;
+import org.netbeans.modules.csl.spi.ParserResult;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexResult;
+import org.netbeans.modules.parsing.spi.indexing.support.QuerySupport;
+import org.openide.filesystems.FileObject;
+
+/**
+ * Go to Type / Go to Symbol, answered from the declarations stored by {@link TSIndexerFactory},
+ * so no server call is needed.
+ */
+public class TSIndexSearcher implements IndexSearcher {
+
+    @Override
+    public Set<? extends Descriptor> getTypes(Project project, String textForQuery,
+            QuerySupport.Kind searchType, Helper helper) {
+        return search(project, textForQuery, searchType, helper, true);
+    }
+
+    @Override
+    public Set<? extends Descriptor> getSymbols(Project project, String textForQuery,
+            QuerySupport.Kind searchType, Helper helper) {
+        return search(project, textForQuery, searchType, helper, false);
+    }
+
+    private static boolean isType(String kind) {
+        switch (kind) {
+            case "class": case "interface": case "type": case "enum": return true;
+            default: return false;
+        }
+    }
+
+    private Set<TSDescriptor> search(Project project, String text, QuerySupport.Kind searchType,
+            Helper helper, boolean typesOnly) {
+        Set<TSDescriptor> results = new HashSet<>();
+        if (text.isEmpty()) {
+            return results;
+        }
+        List<FileObject> roots = new ArrayList<>();
+        for (FileObject root: TSService.getRoots()) {
+            if (project == null || project.equals(FileOwnerQuery.getOwner(root))) {
+                roots.add(root);
+            }
+        }
+        if (roots.isEmpty()) {
+            return results;
+        }
+
+        // The index does the coarse filtering on the name fields; the exact match rules are
+        // re-checked below since each document holds all the declarations of a file. Camel case
+        // queries, case insensitive or not, match the humps against the original names.
+        String field = TSIndexerFactory.FIELD_NAME;
+        String queryText = text;
+        QuerySupport.Kind queryKind = searchType;
+        if (searchType == QuerySupport.Kind.CASE_INSENSITIVE_PREFIX) {
+            field = TSIndexerFactory.FIELD_NAME_LOWER;
+            queryText = text.toLowerCase(Locale.ENGLISH);
+            queryKind = QuerySupport.Kind.PREFIX;
+        }
+        Pattern pattern = null;
+        if (searchType == QuerySupport.Kind.REGEXP || searchType == QuerySupport.Kind.CASE_INSENSITIVE_REGEXP) {
+            try {
+                pattern = Pattern.compile(text, searchType == QuerySupport.Kind.REGEXP
+                        ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            } catch (PatternSyntaxException e) {
+                return results;
+            }
+        }
+
+        Iterable<? extends IndexResult> hits;
+        try {
+            QuerySupport qs = QuerySupport.forRoots(TSIndexerFactory.NAME, TSIndexerFactory.VERSION,
+                    roots.toArray(new FileObject[roots.size()]));
+            hits = qs.query(field, queryText, queryKind, TSIndexerFactory.FIELD_SYMBOL);
+        } catch (IOException e) {
+            TSService.log.log(Level.WARNING, null, e);
+            return results;
+        }
+        for (IndexResult hit: hits) {
+            FileObject fo = hit.getFile();
+            if (fo == null) {
+                continue;
+            }
+            for (String value: hit.getValues(TSIndexerFactory.FIELD_SYMBOL)) {
+                List<String> parts = TSIndexerFactory.splitSymbol(value);
+                if (parts.size() != 5 || (typesOnly && ! isType(parts.get(0)))) {
+                    continue;
+                }
+                if (matches(parts.get(3), text, searchType, pattern)) {
+                    results.add(new TSDescriptor(new TSIndexedElement(fo, parts), helper));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Paths of all files in the program of the given file that mention any of the given
+     * identifiers, or null if they can't be found. Files the program has from outside the
+     * indexed roots are asked of the server.
+     */
+    static Set<String> findFilesContaining(FileObject fileObj, Collection<String> idents) {
+        List<FileObject> roots = TSService.getRoots();
+        Set<String> paths = new HashSet<>();
+        if (idents.isEmpty()) {
+            return paths;
+        }
+        JSONArray names = new JSONArray();
+        names.addAll(idents);
+        List<String> unindexed = (List<String>) TSService.call("getUnindexedFilesContaining", fileObj, names);
+        if (unindexed == null) {
+            return null;
+        }
+        paths.addAll(unindexed);
+        if (roots.isEmpty()) {
+            return paths;
+        }
+        try {
+            QuerySupport qs = QuerySupport.forRoots(TSIndexerFactory.NAME, TSIndexerFactory.VERSION,
+                    roots.toArray(new FileObject[roots.size()]));
+            for (String ident: idents) {
+                for (IndexResult hit: qs.query(TSIndexerFactory.FIELD_IDENT, ident, QuerySupport.Kind.EXACT)) {
+                    FileObject fo = hit.getFile();
+                    if (fo != null) {
+                        paths.add(fo.getPath());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            TSService.log.log(Level.WARNING, null, e);
+            return null;
+        }
+        return paths;
+    }
+
+    static boolean matches(String name, String text, QuerySupport.Kind searchType, Pattern pattern) {
+        switch (searchType) {
+            case EXACT: return name.equals(text);
+            case PREFIX: return name.startsWith(text);
+            case CASE_INSENSITIVE_PREFIX: return name.regionMatches(true, 0, text, 0, text.length());
+            case CAMEL_CASE: return matchesCamelCase(name, text, false);
+            case CASE_INSENSITIVE_CAMEL_CASE: return matchesCamelCase(name, text, true);
+            case REGEXP: case CASE_INSENSITIVE_REGEXP: return pattern.matcher(name).matches();
+            default: return false;
+        }
+    }
+
+    // Each uppercase letter (or digit) in the query begins a new hump; the lowercase letters
+    // following it must be a prefix of that hump in the name. "GTS" and "GeTySe" both match
+    // "GoToTypeSearcher".
+    private static boolean matchesCamelCase(String name, String text, boolean ignoreCase) {
+        int n = 0;
+        for (int t = 0; t < text.length(); ) {
+            int humpEnd = t + 1;
+            while (humpEnd < text.length() && ! isHumpStart(text.charAt(humpEnd))) {
+                humpEnd++;
+            }
+            if (t == 0) {
+                if (! name.regionMatches(ignoreCase, 0, text, 0, humpEnd)) {
+                    return false;
+                }
+                n = humpEnd;
+            } else {
+                while (true) {
+                    while (n < name.length() && ! isHumpStart(name.charAt(n))) {
+                        n++;
+                    }
+                    if (n >= name.length()) {
+                        return false;
+                    }
+                    if (name.regionMatches(ignoreCase, n, text, t, humpEnd - t)) {
+                        n += humpEnd - t;
+                        break;
+                    }
+                    n++;
+                }
+            }
+            t = humpEnd;
+        }
+        return true;
+    }
+
+    private static boolean isHumpStart(char c) {
+        return Character.isUpperCase(c) || Character.isDigit(c);
+    }
+
+    static class TSIndexedElement extends TSNameKindModifiers implements ElementHandle {
+        final FileObject fileObject;
+        final int offset;
+        final String container;
+
+        private static JSONObject toJSON(List<String> parts) {
+            JSONObject obj = new JSONObject();
+            obj.put("kind", parts.get(0));
+            obj.put("kindModifiers", parts.get(1));
+            obj.put("name", parts.get(3));
+            return obj;
+        }
+
+        TSIndexedElement(FileObject fileObject, List<String> parts) {
+            super(toJSON(parts));
+            this.fileObject = fileObject;
+            this.offset = Integer.parseInt(parts.get(2));
+            this.container = parts.get(4);
+        }
+
+        @Override
+        public FileObject getFileObject() { return fileObject; }
+        @Override
+        public String getMimeType() { return "text/typescript"; }
+        @Override
+        public String getIn() { return container.isEmpty() ? null : container; }
+        @Override
+        public boolean signatureEquals(ElementHandle eh) {
+            return eh instanceof TSIndexedElement && fileObject.equals(eh.getFileObject())
+                    && offset == ((TSIndexedElement) eh).offset;
+        }
+        @Override
+        public OffsetRange getOffsetRange(ParserResult pr) {
+            return new OffsetRange(offset, offset + name.length());
+        }
+    }
+
+    static class TSDescriptor extends Descriptor {
+        final TSIndexedElement element;
+        final Helper helper;
+
+        TSDescriptor(TSIndexedElement element, Helper helper) {
+            this.element = element;
+            this.helper = helper;
+        }
+
+        @Override
+        public ElementHandle getElement() { return element; }
+        @Override
+        public String getSimpleName() { return element.name; }
+        @Override
+        public String getOuterName() { return null; }
+        @Override
+        public String getTypeName() {
+            return element.container.isEmpty() ? element.name : element.container + "." + element.name;
+        }
+        @Override
+        public String getContextName() {
+            String path = element.fileObject.getPath();
+            return element.container.isEmpty() ? path : element.container + " (" + path + ")";
+        }
+        @Override
+        public Icon getIcon() {
+            return element.icon != null ? element.icon : helper.getIcon(element);
+        }
+        @Override
+        public String getProjectName() {
+            Project p = FileOwnerQuery.getOwner(element.fileObject);
+            return p == null ? null : ProjectUtils.getInformation(p).getDisplayName();
+        }
+        @Override
+        public Icon getProjectIcon() {
+            Project p = FileOwnerQuery.getOwner(element.fileObject);
+            return p == null ? null : ProjectUtils.getInformation(p).getIcon();
+        }
+        @Override
+        public FileObject getFileObject() { return element.fileObject; }
+        @Override
+        public int getOffset() { return element.offset; }
+        @Override
+        public void open() {
+            UiUtils.open(element.fileObject, element.offset);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TSDescriptor && element.signatureEquals(((TSDescriptor) o).element);
+        }
+        @Override
+        public int hashCode() {
+            return element.fileObject.hashCode() * 31 + element.offset;
+        }
+    }
+}
@@ -15,13 +15,18 @@
  */
 package netbeanstypescript;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.logging.Level;
+import org.json.simple.JSONObject;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.netbeans.modules.parsing.api.Snapshot;
@@ -30,17 +35,33 @@ import org.netbeans.modules.parsing.spi.indexing.Context;
 import org.netbeans.modules.parsing.spi.indexing.CustomIndexer;
 import org.netbeans.modules.parsing.spi.indexing.CustomIndexerFactory;
 import org.netbeans.modules.parsing.spi.indexing.Indexable;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexDocument;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexingSupport;
 import org.openide.filesystems.FileObject;
 import org.openide.filesystems.FileUtil;
 import org.openide.util.Pair;
+import org.openide.util.RequestProcessor;
 
 /**
- * This "indexer" doesn't really index anything, it's just a way to read all the TS files in a
- * project and get notified when they're changed or deleted.
+ * Reads all the TS files in a project and gets notified when they're changed or deleted, so the
+ * server always has the current set of files. Also stores the declarations in each file in the
+ * index, for {@link TSIndexSearcher}.
  * @author jeffrey
  */
 public class TSIndexerFactory extends CustomIndexerFactory {
 
+    static final String NAME = "typescript";
+    static final int VERSION = 3;
+
+    // Index fields. Each file's document has one FIELD_SYMBOL value per declaration, in the form
+    // kind;kindModifiers;offset;name;container where offset is that of the name. Semicolons and
+    // backslashes within a part are escaped with a backslash (see joinSymbol/splitSymbol).
+    static final String FIELD_NAME = "tsn";
+    static final String FIELD_NAME_LOWER = "tsnl";
+    static final String FIELD_SYMBOL = "tss";
+    // Every identifier in the file, for narrowing down reference searches. Searchable only.
+    static final String FIELD_IDENT = "tsi";
+
     private final Set<String> openRoots = Collections.synchronizedSet(new HashSet<String>());
 
     @Override
@@ -78,11 +99,82 @@ public class TSIndexerFactory extends CustomIndexerFactory {
                 }
                 if (! snapshots.isEmpty()) {
                     TSService.addFiles(snapshots, context);
+                    storeSymbols(snapshots, context);
                 }
             }
         };
     }
 
+    private static void storeSymbols(List<Pair<Indexable, Snapshot>> snapshots, Context context) {
+        IndexingSupport support;
+        try {
+            support = IndexingSupport.getInstance(context);
+        } catch (IOException e) {
+            TSService.log.log(Level.WARNING, null, e);
+            return;
+        }
+        for (Pair<Indexable, Snapshot> item: snapshots) {
+            support.removeDocuments(item.first());
+            FileObject fo = item.second().getSource().getFileObject();
+            if (fo.getNameExt().equals("tsconfig.json")) {
+                continue;
+            }
+            JSONObject data = (JSONObject) TSService.call("getIndexItems", fo);
+            if (data == null) {
+                continue;
+            }
+            IndexDocument doc = support.createDocument(item.first());
+            for (JSONObject decl: (List<JSONObject>) data.get("items")) {
+                String name = (String) decl.get("name");
+                doc.addPair(FIELD_NAME, name, true, false);
+                doc.addPair(FIELD_NAME_LOWER, name.toLowerCase(Locale.ENGLISH), true, false);
+                doc.addPair(FIELD_SYMBOL, joinSymbol(String.valueOf(decl.get("kind")),
+                        String.valueOf(decl.get("kindModifiers")), String.valueOf(decl.get("start")),
+                        name, String.valueOf(decl.get("container"))), false, true);
+            }
+            for (String ident: (List<String>) data.get("idents")) {
+                doc.addPair(FIELD_IDENT, ident, true, false);
+            }
+            support.addDocument(doc);
+        }
+    }
+
+    static String joinSymbol(String... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < parts.length; p++) {
+            String part = parts[p];
+            if (p > 0) {
+                sb.append(';');
+            }
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c == ';' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static List<String> splitSymbol(String value) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                sb.append(value.charAt(++i));
+            } else if (c == ';') {
+                parts.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        parts.add(sb.toString());
+        return parts;
+    }
+
     @Override
     public void scanFinished(Context context) {
         if (! context.checkForEditorModifications()) {
@@ -97,6 +189,14 @@ public class TSIndexerFactory extends CustomIndexerFactory {
 
     @Override
     public void filesDeleted(Iterable<? extends Indexable> deleted, Context context) {
+        try {
+            IndexingSupport support = IndexingSupport.getInstance(context);
+            for (Indexable indexable: deleted) {
+                support.removeDocuments(indexable);
+            }
+        } catch (IOException e) {
+            TSService.log.log(Level.WARNING, null, e);
+        }
         TSService.removeFiles(deleted, context);
     }
 
@@ -114,27 +214,52 @@ public class TSIndexerFactory extends CustomIndexerFactory {
 
     @Override
     public String getIndexerName() {
-        return "typescript";
+        return NAME;
     }
 
     @Override
     public int getIndexVersion() {
-        return 0;
+        return VERSION;
     }
 
-    static void compileIfEnabled(FileObject root, FileObject[] fileObjects) {
-        ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript compile on save");
-        progress.start();
-        try {
-            for (FileObject fileObject: fileObjects) {
-                TSService.log.log(Level.FINE, "Compiling {0}", fileObject.getPath());
-                CompileAction.writeEmitOutput(fileObject,
-                        TSService.call("getCompileOnSaveEmitOutput", fileObject));
+    // Saved files waiting to be compiled. Compile on save has its own thread, so emitting doesn't
+    // wait for error checking of the whole project, nor the other way around. A file saved again
+    // before its turn comes is only compiled once.
+    private static final Set<FileObject> pendingCompiles = new LinkedHashSet<>();
+    private static final RequestProcessor.Task compileTask =
+            new RequestProcessor("TypeScript compile on save").create(new Runnable() {
+        @Override
+        public void run() {
+            ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript compile on save");
+            progress.start();
+            try {
+                while (true) {
+                    FileObject fileObject;
+                    synchronized (pendingCompiles) {
+                        Iterator<FileObject> iter = pendingCompiles.iterator();
+                        if (! iter.hasNext()) {
+                            return;
+                        }
+                        fileObject = iter.next();
+                        iter.remove();
+                    }
+                    TSService.log.log(Level.FINE, "Compiling {0}", fileObject.getPath());
+                    CompileAction.writeEmitOutput(fileObject,
+                            TSService.call("getCompileOnSaveEmitOutput", fileObject));
+                }
+            } finally {
+                progress.finish();
             }
-        } catch (TSService.TSException e) {
-            e.notifyLater();
-        } finally {
-            progress.finish();
         }
+    });
+
+    static void compileIfEnabled(FileObject[] fileObjects) {
+        if (fileObjects.length == 0) {
+            return;
+        }
+        synchronized (pendingCompiles) {
+            Collections.addAll(pendingCompiles, fileObjects);
+        }
+        compileTask.schedule(0);
     }
 }
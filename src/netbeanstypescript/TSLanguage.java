@@ -92,6 +92,9 @@ public class TSLanguage extends DefaultLanguageConfig {
     @Override
     public OverridingMethods getOverridingMethods() { return new TSOverridingMethods(); }
 
+    @Override
+    public IndexSearcher getIndexSearcher() { return new TSIndexSearcher(); }
+
     @Override
     public boolean hasHintsProvider() { return true; }
     @Override
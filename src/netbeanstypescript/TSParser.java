@@ -15,10 +15,14 @@
  */
 package netbeanstypescript;
 
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.swing.event.ChangeListener;
 import org.json.simple.JSONObject;
 import org.netbeans.modules.csl.api.Error;
@@ -31,6 +35,7 @@ import org.netbeans.modules.parsing.spi.ParseException;
 import org.netbeans.modules.parsing.spi.Parser;
 import org.netbeans.modules.parsing.spi.SourceModificationEvent;
 import org.openide.filesystems.FileObject;
+import org.openide.util.ChangeSupport;
 
 /**
  *
@@ -39,9 +44,32 @@ import org.openide.filesystems.FileObject;
 public class TSParser extends Parser {
 
     private Result result;
+    private final ChangeSupport changeSupport = new ChangeSupport(this);
+
+    // The parser of each file, so tasks can be run again when something they showed has changed
+    // without an edit to the file (see invalidate)
+    private static final Map<FileObject, Reference<TSParser>> parsers = new WeakHashMap<>();
+
+    // Parsing the same text again is cheap: the server keeps its versions, and so its caches
+    static void invalidate(FileObject fo) {
+        Reference<TSParser> ref;
+        synchronized (parsers) {
+            ref = parsers.get(fo);
+        }
+        TSParser parser = ref != null ? ref.get() : null;
+        if (parser != null) {
+            parser.changeSupport.fireChange();
+        }
+    }
 
     @Override
     public void parse(Snapshot snapshot, Task task, SourceModificationEvent event) throws ParseException {
+        FileObject fo = snapshot.getSource().getFileObject();
+        if (fo != null) {
+            synchronized (parsers) {
+                parsers.put(fo, new WeakReference<>(this));
+            }
+        }
         TSService.updateFile(snapshot);
         result = new ParserResult(snapshot) {
             @Override
@@ -89,9 +117,11 @@ public class TSParser extends Parser {
 
     @Override
     public void addChangeListener(ChangeListener cl) {
+        changeSupport.addChangeListener(cl);
     }
 
     @Override
     public void removeChangeListener(ChangeListener cl) {
+        changeSupport.removeChangeListener(cl);
     }
 }
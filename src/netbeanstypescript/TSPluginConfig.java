@@ -58,6 +58,9 @@ public class TSPluginConfig extends BaseAction {
 
     public static String getLibDir() { return PREFS.get("libDir", ""); }
     public static String getLocale() { return PREFS.get("locale", ""); }
+    // Limits on the type checkers nbts-services keeps for projects not being used; 0 = no limit
+    public static int getHeapBudgetMB() { return PREFS.getInt("heapBudgetMB", 1024); }
+    public static int getIdleMinutes() { return PREFS.getInt("idleMinutes", 30); }
 
     static String inferVersion(String libDir) throws IOException {
         // Parse typescript.js to guess version
@@ -100,6 +103,8 @@ public class TSPluginConfig extends BaseAction {
         NotificationLineSupport nls = dd.createNotificationLineSupport();
         JTextField dirField = new JTextField();
         JComboBox<TSLocale> locale = new JComboBox<>();
+        JSpinner heapBudget = new JSpinner(new SpinnerNumberModel(getHeapBudgetMB(), 0, 65536, 256));
+        JSpinner idleMinutes = new JSpinner(new SpinnerNumberModel(getIdleMinutes(), 0, 1440, 5));
 
         boolean show() {
             panel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
@@ -130,11 +135,20 @@ public class TSPluginConfig extends BaseAction {
             localeRow.add(locale, BorderLayout.CENTER);
             localeRow.setPreferredSize(new Dimension(600, locale.getPreferredSize().height));
             panel.add(localeRow);
+            panel.add(Box.createVerticalStrut(5));
+
+            addSpinnerRow("&Heap budget:", heapBudget, "MB (0 = no limit)",
+                    "Above this, type checkers of the least recently used projects are freed");
+            panel.add(Box.createVerticalStrut(5));
+            addSpinnerRow("Idle &timeout:", idleMinutes, "minutes (0 = never)",
+                    "Type checkers of projects not used for this long are freed");
 
             if (DialogDisplayer.getDefault().notify(dd) != DialogDescriptor.OK_OPTION) {
                 return false;
             }
             PREFS.put("libDir", dirField.getText());
+            PREFS.putInt("heapBudgetMB", (Integer) heapBudget.getValue());
+            PREFS.putInt("idleMinutes", (Integer) idleMinutes.getValue());
             if (locale.isEnabled()) {
                 PREFS.put("locale", ((TSLocale) locale.getSelectedItem()).id);
             }
@@ -142,6 +156,22 @@ public class TSPluginConfig extends BaseAction {
             return true;
         }
 
+        void addSpinnerRow(String label, JSpinner spinner, String units, String tooltip) {
+            JComponent row = new JPanel(new BorderLayout(5, 5));
+            JLabel rowLabel = new JLabel();
+            rowLabel.setPreferredSize(new Dimension(100, 1));
+            Mnemonics.setLocalizedText(rowLabel, label);
+            row.add(rowLabel, BorderLayout.LINE_START);
+            rowLabel.setLabelFor(spinner);
+            spinner.setToolTipText(tooltip);
+            JComponent spinnerAndUnits = new JPanel(new BorderLayout(5, 5));
+            spinnerAndUnits.add(spinner, BorderLayout.LINE_START);
+            spinnerAndUnits.add(new JLabel(units), BorderLayout.CENTER);
+            row.add(spinnerAndUnits, BorderLayout.CENTER);
+            row.setPreferredSize(new Dimension(600, spinner.getPreferredSize().height));
+            panel.add(row);
+        }
+
         @Override public void actionPerformed(ActionEvent e) {
             JFileChooser chooser = new JFileChooser(dirField.getText());
             chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -18,8 +18,11 @@ package netbeanstypescript;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JCheckBox;
@@ -27,13 +30,13 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.event.ChangeListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.Position;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.netbeans.lib.editor.util.StringEscapeUtils;
 import org.netbeans.modules.csl.spi.GsfUtilities;
-import org.netbeans.modules.csl.spi.support.ModificationResult;
 import org.netbeans.modules.refactoring.api.*;
 import org.netbeans.modules.refactoring.spi.*;
 import org.netbeans.modules.refactoring.spi.ui.*;
@@ -98,21 +101,27 @@ public class TSRefactoring extends ActionsImplementationProvider {
         // for the wrong symbol. Fixing this would probably be more difficult than it's worth.
         FileObject fileObj;
         int caretPosition;
+        String ident;
 
         TSWhereUsedQuery(EditorCookie ec) {
             super(Lookup.EMPTY);
             this.fileObj = GsfUtilities.findFileObject(ec.getDocument());
             this.caretPosition = ec.getOpenedPanes()[0].getCaretPosition();
+            this.ident = identifierAt(ec.getDocument(), caretPosition);
         }
 
         class Plugin implements RefactoringPlugin {
+            private volatile boolean cancelled;
+            private final Set<String> found = new HashSet<>();
+
             @Override public Problem preCheck() { return null; }
             @Override public Problem checkParameters() { return null; }
             @Override public Problem fastCheckParameters() { return null; }
-            @Override public void cancelRequest() {}
+            @Override public void cancelRequest() { cancelled = true; }
             @Override public Problem prepare(RefactoringElementsBag refactoringElements) {
-                Object arr = TSService.call("getReferencesAtPosition", fileObj, caretPosition);
-                if (arr == null) {
+                cancelled = false;
+                found.clear();
+                if (! findReferences(refactoringElements)) {
                     // Doesn't work without dialog?
                     //return new Problem(true, "Could not find symbol at " + fileObj + " offset " + caretPosition);
                     refactoringElements.add(TSWhereUsedQuery.this, new SimpleRefactoringElementImplementation() {
@@ -125,12 +134,111 @@ public class TSRefactoring extends ActionsImplementationProvider {
                         @Override public FileObject getParentFile() { return fileObj; }
                         @Override public PositionBounds getPosition() { return null; }
                     });
-                    return null;
                 }
+                return null;
+            }
+
+            // Only the files that mention the identifier (or a name it's imported or exported
+            // under), per the index or the server for files outside it, are searched, a file per
+            // server call so each file's results show up as soon as they're found and the search
+            // can be cancelled in between. If the candidates turn out not to be enough (a default
+            // export can be imported under any name) or can't be found, the rest of the program
+            // is searched the same way.
+            private boolean findReferences(RefactoringElementsBag bag) {
+                if (ident == null) {
+                    // Nothing to narrow the search by; the server searches the whole program
+                    JSONObject res = search(null);
+                    if (res == null) {
+                        return false;
+                    }
+                    addUses((List<JSONObject>) res.get("refs"), bag);
+                    return true;
+                }
+                Set<String> searchedNames = new HashSet<>();
+                Set<String> searchedFiles = new HashSet<>();
+                Collection<String> names = Collections.singletonList(ident);
+                boolean resolved = false;
+                boolean complete = true;
+                while (complete && ! names.isEmpty()) {
+                    searchedNames.addAll(names);
+                    Set<String> files = TSIndexSearcher.findFilesContaining(fileObj, names);
+                    if (files == null) {
+                        complete = false;
+                        break;
+                    }
+                    files.removeAll(searchedFiles);
+                    List<String> sorted = new ArrayList<>(files);
+                    Collections.sort(sorted);
+                    if (sorted.isEmpty() && ! resolved) {
+                        sorted.add(null); // still search the symbol's own files
+                    }
+                    Set<String> aliases = new HashSet<>();
+                    for (String file: sorted) {
+                        if (cancelled) {
+                            return true;
+                        }
+                        JSONArray batch = new JSONArray();
+                        if (file != null) {
+                            searchedFiles.add(file);
+                            batch.add(file);
+                        }
+                        JSONObject res = search(batch);
+                        if (res == null) {
+                            return resolved;
+                        }
+                        resolved = true;
+                        addUses((List<JSONObject>) res.get("refs"), bag);
+                        if (res.get("aliases") == null) {
+                            complete = false;
+                            break;
+                        }
+                        aliases.addAll((List<String>) res.get("aliases"));
+                    }
+                    aliases.removeAll(searchedNames);
+                    names = aliases;
+                }
+                if (complete) {
+                    return true;
+                }
+                List<String> allFiles = (List<String>) TSService.call("getProgramFiles", fileObj);
+                if (allFiles == null) {
+                    return resolved;
+                }
+                for (String file: allFiles) {
+                    if (cancelled) {
+                        return true;
+                    }
+                    if (! searchedFiles.add(file)) {
+                        continue;
+                    }
+                    JSONArray batch = new JSONArray();
+                    batch.add(file);
+                    JSONObject res = search(batch);
+                    if (res == null) {
+                        return resolved;
+                    }
+                    resolved = true;
+                    addUses((List<JSONObject>) res.get("refs"), bag);
+                }
+                return true;
+            }
+
+            // Searches the given files, plus the symbol's own files; aliases in the result is null
+            // if references might also be reached by names the search can't know about
+            private JSONObject search(JSONArray files) {
+                return (JSONObject) TSService.call("getReferencesAtPosition",
+                        fileObj, caretPosition, ident, files, true);
+            }
+
+            private void addUses(List<JSONObject> arr, RefactoringElementsBag bag) {
                 List<RefactoringElementImplementation> uses = new ArrayList<>();
-                for (JSONObject use: (List<JSONObject>) arr) {
+                for (JSONObject use: arr) {
                     final int start = ((Number) use.get("start")).intValue();
                     final int end = ((Number) use.get("end")).intValue();
+                    // Every call also searches the symbol's own files
+                    if (! found.add(use.get("fileName") + ":" + start)) {
+                        continue;
+                    }
 
                     final int lineStart = ((Number) use.get("lineStart")).intValue();
                     final String lineText = (String) use.get("lineText");
@@ -150,13 +258,7 @@ public class TSRefactoring extends ActionsImplementationProvider {
                         public String getText() { return toString(); }
                         @Override
                         public String getDisplayText() {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append(StringEscapeUtils.escapeHtml(lineText.substring(0, start - lineStart)));
-                            sb.append("<b>");
-                            sb.append(StringEscapeUtils.escapeHtml(lineText.substring(start - lineStart, end - lineStart)));
-                            sb.append("</b>");
-                            sb.append(StringEscapeUtils.escapeHtml(lineText.substring(end - lineStart)));
-                            return sb.toString();
+                            return lineDisplayText(lineText, start - lineStart, end - lineStart);
                         }
                         @Override
                         public void performChange() {}
@@ -168,12 +270,35 @@ public class TSRefactoring extends ActionsImplementationProvider {
                         public PositionBounds getPosition() { return bounds; }
                     });
                 }
-                refactoringElements.addAll(TSWhereUsedQuery.this, uses);
-                return null;
+                bag.addAll(TSWhereUsedQuery.this, uses);
             }
         };
     }
 
+    // The line with the given range in bold
+    static String lineDisplayText(String lineText, int start, int end) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(StringEscapeUtils.escapeHtml(lineText.substring(0, start)));
+        sb.append("<b>");
+        sb.append(StringEscapeUtils.escapeHtml(lineText.substring(start, end)));
+        sb.append("</b>");
+        sb.append(StringEscapeUtils.escapeHtml(lineText.substring(end)));
+        return sb.toString();
+    }
+
+    static String identifierAt(Document doc, int offset) {
+        try {
+            String text = doc.getText(0, doc.getLength());
+            int start = offset, end = offset;
+            while (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1))) start--;
+            while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end))) end++;
+            return start < end && Character.isJavaIdentifierStart(text.charAt(start))
+                    ? text.substring(start, end) : null;
+        } catch (BadLocationException e) {
+            return null;
+        }
+    }
+
     @Override
     public boolean canRename(Lookup lookup) {
         return canFindUsages(lookup);
@@ -271,15 +396,31 @@ public class TSRefactoring extends ActionsImplementationProvider {
             @Override public Problem fastCheckParameters() { return null; }
             @Override public void cancelRequest() {}
             @Override public Problem prepare(RefactoringElementsBag refactoringElements) {
+                // Searching strings and comments needs every file; otherwise, only the files the
+                // index says mention the old name can have anything to rename.
+                JSONArray filesToSearch = null;
+                if (! panel.findInStrings.isSelected() && ! panel.findInComments.isSelected()) {
+                    Set<String> files = TSIndexSearcher.findFilesContaining(
+                            fileObj, Collections.singletonList(panel.oldName));
+                    if (files != null) {
+                        filesToSearch = new JSONArray();
+                        filesToSearch.addAll(files);
+                    }
+                }
                 JSONArray arr = (JSONArray) TSService.call("findRenameLocations", fileObj, position,
-                        panel.findInStrings.isSelected(), panel.findInComments.isSelected());
+                        panel.findInStrings.isSelected(), panel.findInComments.isSelected(),
+                        panel.oldName, filesToSearch);
                 if (arr == null) {
                     return new Problem(true, "findRenameLocations returned null");
                 }
-                ModificationResult modificationResult = new ModificationResult();
+                // Nothing about the files is loaded here; TSChangeSet reads and writes the ones
+                // that aren't open directly when the refactoring is performed.
+                TSChangeSet changes = new TSChangeSet();
+                List<RefactoringElementImplementation> elements = new ArrayList<>();
+                String newName = panel.newName.getText();
                 Problem firstProblem = null, lastProblem = null;
-                for (JSONObject loc: (List<JSONObject>) arr) {
-                    String locFileName = (String) loc.get("fileName");
+                for (JSONObject group: (List<JSONObject>) arr) {
+                    String locFileName = (String) group.get("fileName");
                     FileObject locFileObj = TSService.findIndexedFileObject(locFileName);
                     if (locFileObj == null) {
                         Problem p = new Problem(false, "Reference in unindexed file " + locFileName);
@@ -287,24 +428,51 @@ public class TSRefactoring extends ActionsImplementationProvider {
                         lastProblem = p;
                         continue;
                     }
-                    CloneableEditorSupport ces = GsfUtilities.findCloneableEditorSupport(locFileObj);
-                    modificationResult.addDifferences(locFileObj, Collections.singletonList(new ModificationResult.Difference(
-                            ModificationResult.Difference.Kind.CHANGE,
-                            ces.createPositionRef(((Number) loc.get("start")).intValue(), Position.Bias.Forward),
-                            ces.createPositionRef(((Number) loc.get("end")).intValue(), Position.Bias.Forward),
-                            panel.oldName, panel.newName.getText())));
-                }
-                refactoringElements.registerTransaction(new RefactoringCommit(Collections.singletonList(modificationResult)));
-                for (FileObject fo: modificationResult.getModifiedFileObjects()) {
-                    for (ModificationResult.Difference diff: modificationResult.getDifferences(fo)) {
-                        refactoringElements.add(TSRenameRefactoring.this, DiffElement.create(diff, fo, modificationResult));
+                    for (JSONObject loc: (List<JSONObject>) group.get("locs")) {
+                        int start = ((Number) loc.get("start")).intValue();
+                        int end = ((Number) loc.get("end")).intValue();
+                        int lineStart = ((Number) loc.get("lineStart")).intValue();
+                        String lineText = (String) loc.get("lineText");
+                        TSChangeSet.Edit edit = changes.add(locFileObj, start, end,
+                                lineText.substring(start - lineStart, end - lineStart), newName);
+                        elements.add(changes.new Element(locFileObj, edit,
+                                lineDisplayText(lineText, start - lineStart, end - lineStart)));
                     }
                 }
+                refactoringElements.registerTransaction(changes);
+                refactoringElements.addAll(TSRenameRefactoring.this, elements);
                 return firstProblem;
             }
         };
     }
 
+    /**
+     * Applies a code fix's change set as a refactoring, without any UI, so that it's undone as a
+     * whole with Refactor > Undo even when it rewrote files that aren't open.
+     */
+    static class TSCodeFixRefactoring extends AbstractRefactoring {
+        final String description;
+        final TSChangeSet changes;
+
+        TSCodeFixRefactoring(String description, TSChangeSet changes) {
+            super(Lookup.EMPTY);
+            this.description = description;
+            this.changes = changes;
+        }
+
+        class Plugin implements RefactoringPlugin {
+            @Override public Problem preCheck() { return null; }
+            @Override public Problem checkParameters() { return null; }
+            @Override public Problem fastCheckParameters() { return null; }
+            @Override public void cancelRequest() {}
+            @Override public Problem prepare(RefactoringElementsBag refactoringElements) {
+                refactoringElements.registerTransaction(changes);
+                refactoringElements.addAll(TSCodeFixRefactoring.this, changes.createElements(description));
+                return null;
+            }
+        }
+    }
+
     @ServiceProvider(service = RefactoringPluginFactory.class)
     public static class TSRefactoringPluginFactory implements RefactoringPluginFactory {
         @Override
@@ -313,6 +481,8 @@ public class TSRefactoring extends ActionsImplementationProvider {
                 return ((TSWhereUsedQuery) refactoring).new Plugin();
             } else if (refactoring instanceof TSRenameRefactoring) {
                 return ((TSRenameRefactoring) refactoring).new Plugin();
+            } else if (refactoring instanceof TSCodeFixRefactoring) {
+                return ((TSCodeFixRefactoring) refactoring).new Plugin();
             }
             return null;
         }
@@ -15,6 +15,7 @@
  */
 package netbeanstypescript;
 
+import java.util.Base64;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -45,22 +46,56 @@ public class TSSemanticAnalyzer extends SemanticAnalyzer<Parser.Result> {
     @Override
     public void run(Parser.Result t, SchedulerEvent se) {
         Object highlights = TSService.call("getSemanticHighlights",
-                t.getSnapshot().getSource().getFileObject());
+                t.getSnapshot().getSource().getFileObject(), true);
         if (highlights == null) {
             result = Collections.emptyMap();
             return;
         }
+        result = convertHighlights((JSONObject) highlights);
+    }
+
+    static Map<OffsetRange, Set<ColoringAttributes>> convertHighlights(JSONObject highlights) {
+        List<String> attrNames = (List<String>) highlights.get("attrs");
+        ColoringAttributes[] attrs = new ColoringAttributes[attrNames.size()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = ColoringAttributes.valueOf(attrNames.get(i));
+        }
+        // Most files only use a handful of attribute combinations, so share one set per bitmask
+        // rather than creating a set for every highlight.
+        Set<ColoringAttributes>[] setsByFlags = new Set[1 << attrs.length];
+
+        byte[] packed = Base64.getDecoder().decode((String) highlights.get("packed"));
         Map<OffsetRange, Set<ColoringAttributes>> map = new HashMap<>();
-        for (JSONObject hi: (List<JSONObject>) highlights) {
-            int start = ((Number) hi.get("s")).intValue();
-            int length = ((Number) hi.get("l")).intValue();
-            EnumSet<ColoringAttributes> atts = EnumSet.noneOf(ColoringAttributes.class);
-            for (String attr: (List<String>) hi.get("a")) {
-                atts.add(ColoringAttributes.valueOf(attr));
+        int start = 0;
+        for (int[] pos = { 0 }; pos[0] < packed.length; ) {
+            int delta = readVarint(packed, pos);
+            start += (delta >>> 1) ^ -(delta & 1);
+            int length = readVarint(packed, pos);
+            int flags = readVarint(packed, pos);
+            Set<ColoringAttributes> atts = setsByFlags[flags];
+            if (atts == null) {
+                EnumSet<ColoringAttributes> set = EnumSet.noneOf(ColoringAttributes.class);
+                for (int i = 0; i < attrs.length; i++) {
+                    if ((flags & (1 << i)) != 0) {
+                        set.add(attrs[i]);
+                    }
+                }
+                atts = setsByFlags[flags] = Collections.unmodifiableSet(set);
             }
             map.put(new OffsetRange(start, start + length), atts);
         }
-        result = map;
+        return map;
+    }
+
+    private static int readVarint(byte[] bytes, int[] pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
     }
 
     @Override
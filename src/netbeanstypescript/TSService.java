@@ -16,16 +16,21 @@
 package netbeanstypescript;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
@@ -36,7 +41,10 @@ import org.netbeans.modules.parsing.spi.indexing.ErrorsCache.Convertor;
 import org.netbeans.modules.parsing.spi.indexing.Indexable;
 import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
+import org.openide.filesystems.FileChangeAdapter;
+import org.openide.filesystems.FileEvent;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
 import org.openide.filesystems.FileUtil;
 import org.openide.util.Pair;
 import org.openide.util.RequestProcessor;
@@ -49,6 +57,8 @@ public class TSService {
 
     static final Logger log = Logger.getLogger(TSService.class.getName());
     static final RequestProcessor RP = new RequestProcessor("TSService", 1, true);
+    private static final RequestProcessor RP_WATCHER = new RequestProcessor("TSService file watcher", 1);
+    private static final int FLUSH_DELAY = 100;
 
     public static class TSException extends Exception {
         public TSException(String msg) { super(msg); }
@@ -76,6 +86,7 @@ public class TSService {
         final List<FileObject> needCompileOnSave = new ArrayList<>();
         boolean needErrorsUpdate;
         Object currentErrorsUpdate;
+        RootWatcher watcher;
 
         ProgramData(FileObject root) {
             if (currentProcess == null || ! currentProcess.isValid()) {
@@ -84,6 +95,11 @@ public class TSService {
             }
             this.process = currentProcess;
             this.root = root;
+            File rootFile = FileUtil.toFile(root);
+            if (rootFile != null) {
+                watcher = new RootWatcher(this, rootFile);
+                watcher.start();
+            }
         }
 
         final void addFile(FileData fd, Snapshot s, boolean modified) {
@@ -110,6 +126,158 @@ public class TSService {
         }
     }
 
+    // Folders whose listings are sent to the server and kept up to date. Packages in node_modules
+    // (but not node_modules itself or @scope folders, so installs are noticed) and VCS metadata
+    // are left for the server to read from disk if it needs them.
+    private static final FileFilter WATCHED_FOLDERS = new FileFilter() {
+        @Override
+        public boolean accept(File dir) {
+            String name = dir.getName();
+            File parent = dir.getParentFile();
+            String parentName = parent == null ? "" : parent.getName();
+            File grandparent = parent == null ? null : parent.getParentFile();
+            if (name.equals(".git") || name.equals(".hg") || name.equals(".svn")) {
+                return false;
+            } else if (parentName.equals("node_modules")) {
+                return name.startsWith("@");
+            }
+            return ! (parentName.startsWith("@") && grandparent != null
+                    && grandparent.getName().equals("node_modules"));
+        }
+    };
+
+    // Mirrors the folders under a source root into the server (see vfsAddRoot in main.ts), so
+    // module resolution and config globbing can look up files without going to the disk. Events
+    // are batched, since something like npm install or a VCS update produces thousands of them.
+    // The initial listing is built on RP_WATCHER, outside the lock, since walking a large root
+    // takes a while; the server reads the root from disk until it arrives.
+    private static class RootWatcher extends FileChangeAdapter implements Runnable {
+        final ProgramData program;
+        final File rootFile;
+        final Set<FileObject> changedFolders = new LinkedHashSet<>();
+        final Set<String> changedFiles = new LinkedHashSet<>();
+        final RequestProcessor.Task flushTask = RP_WATCHER.create(this);
+        boolean listening, stopped;  // guarded by this
+
+        RootWatcher(ProgramData program, File rootFile) {
+            this.program = program;
+            this.rootFile = rootFile;
+        }
+
+        void start() {
+            RP_WATCHER.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Listen first, so changes made during the walk get flushed after it. The
+                    // flush task runs on the same throughput-1 processor, so never before this.
+                    synchronized (RootWatcher.this) {
+                        if (stopped) {
+                            return;
+                        }
+                        FileUtil.addRecursiveListener(RootWatcher.this, rootFile, WATCHED_FOLDERS, null);
+                        listening = true;
+                    }
+                    JSONObject listing = new JSONObject();
+                    addListings(program.root, listing);
+                    lock.lock();
+                    try {
+                        if (program.watcher == RootWatcher.this) {
+                            program.process.call("vfsAddRoot", program.root.getPath(), listing);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        }
+
+        void stop() {
+            synchronized (this) {
+                stopped = true;
+                if (listening) {
+                    FileUtil.removeRecursiveListener(this, rootFile);
+                    listening = false;
+                }
+            }
+            flushTask.cancel();
+            program.process.call("vfsRemoveRoot", program.root.getPath());
+        }
+
+        private static void addListings(FileObject folder, JSONObject listing) {
+            listing.put(folder.getPath(), list(folder));
+            for (FileObject child: folder.getChildren()) {
+                File file = FileUtil.toFile(child);
+                if (child.isFolder() && file != null && WATCHED_FOLDERS.accept(file)) {
+                    addListings(child, listing);
+                }
+            }
+        }
+
+        // Names of the children, with a trailing / on folders
+        private static JSONArray list(FileObject folder) {
+            JSONArray names = new JSONArray();
+            for (FileObject child: folder.getChildren()) {
+                names.add(child.isFolder() ? child.getNameExt() + "/" : child.getNameExt());
+            }
+            return names;
+        }
+
+        private void folderChanged(FileEvent fe) {
+            FileObject parent = fe.getFile().getParent();
+            if (parent != null) {
+                synchronized (this) {
+                    changedFolders.add(parent);
+                }
+                flushTask.schedule(FLUSH_DELAY);
+            }
+        }
+
+        @Override
+        public void fileFolderCreated(FileEvent fe) { folderChanged(fe); }
+        @Override
+        public void fileDataCreated(FileEvent fe) { folderChanged(fe); }
+        @Override
+        public void fileDeleted(FileEvent fe) { folderChanged(fe); }
+        @Override
+        public void fileRenamed(FileRenameEvent fe) { folderChanged(fe); }
+        @Override
+        public void fileChanged(FileEvent fe) {
+            synchronized (this) {
+                changedFiles.add(fe.getFile().getPath());
+            }
+            flushTask.schedule(FLUSH_DELAY);
+        }
+
+        @Override
+        public void run() {
+            List<FileObject> folders;
+            List<String> files;
+            synchronized (this) {
+                folders = new ArrayList<>(changedFolders);
+                files = new ArrayList<>(changedFiles);
+                changedFolders.clear();
+                changedFiles.clear();
+            }
+            lock.lock();
+            try {
+                if (program.watcher != this) {
+                    return; // root has been removed
+                }
+                for (FileObject folder: folders) {
+                    // A deleted folder is taken care of by the update of its parent
+                    if (folder.isValid()) {
+                        program.process.call("vfsUpdate", folder.getPath(), list(folder));
+                    }
+                }
+                for (String path: files) {
+                    program.process.call("vfsFileChanged", path);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     private static class FileData {
         ProgramData program;
         FileObject fileObject;
@@ -214,12 +382,12 @@ public class TSService {
         } finally {
             lock.unlock();
         }
+        TSIndexerFactory.compileIfEnabled(compileOnSave);
         new Runnable() {
             RequestProcessor.Task task = RP.create(this);
             ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript error checking", task);
             @Override
             public void run() {
-                TSIndexerFactory.compileIfEnabled(program.root, compileOnSave);
                 progress.start(files.length);
                 try {
                     long t1 = System.currentTimeMillis();
@@ -265,6 +433,10 @@ public class TSService {
                 return;
             }
             program.currentErrorsUpdate = null; // stop any updateErrors task
+            if (program.watcher != null) {
+                program.watcher.stop();
+                program.watcher = null;
+            }
 
             Iterator<FileData> iter = allFiles.values().iterator();
             while (iter.hasNext()) {
@@ -329,6 +501,42 @@ public class TSService {
         } catch (TSException e) { return null; }
     }
 
+    // Returned by callIfIdle when the call would have had to wait
+    static final Object BUSY = new Object();
+
+    /**
+     * Like call, but for background work that must not hold up anything else: returns BUSY
+     * instead of waiting if another call is running or waiting to run.
+     */
+    static Object callIfIdle(String method, FileObject fileObj, Object... args) {
+        try {
+            // Unlike tryLock(), this honors the fair ordering, so it fails if others are waiting
+            if (! lock.tryLock(0, TimeUnit.MILLISECONDS)) {
+                return BUSY;
+            }
+        } catch (InterruptedException e) {
+            return BUSY;
+        }
+        try {
+            return call(method, fileObj, args);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static List<FileObject> getRoots() {
+        lock.lock();
+        try {
+            List<FileObject> roots = new ArrayList<>();
+            for (ProgramData program: programs.values()) {
+                roots.add(program.root);
+            }
+            return roots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     static FileObject findIndexedFileObject(String path) {
         lock.lock();
         try {
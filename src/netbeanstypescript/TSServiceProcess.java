@@ -17,6 +17,8 @@ package netbeanstypescript;
 
 import java.io.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Level;
 import static netbeanstypescript.TSService.*;
 import org.json.simple.JSONValue;
@@ -38,6 +40,7 @@ public class TSServiceProcess {
     private volatile String procError;
     private int configGen;
     private String configError;
+    private final Set<Integer> registeredFormatSettings = new HashSet<>();
 
     public TSServiceProcess() {
         File file = InstalledFileLocator.getDefault().locate("nbts-services.js", "netbeanstypescript", false);
@@ -68,7 +71,7 @@ public class TSServiceProcess {
         stderr = process.getErrorStream();
     }
 
-    private static void stringToJS(StringBuilder sb, CharSequence s) {
+    static void stringToJS(StringBuilder sb, CharSequence s) {
         sb.append('"');
         for (int i = 0; i < s.length(); i++) {
             char c = s.charAt(i);
@@ -91,6 +94,16 @@ public class TSServiceProcess {
         if (commError != null) {
             return TSException.class;
         }
+        for (Object arg: args) {
+            // Settings are sent to this process the first time they're used; after that the
+            // argument is just a reference to them
+            if (arg instanceof TSFormatter.FormatSettings) {
+                TSFormatter.FormatSettings settings = (TSFormatter.FormatSettings) arg;
+                if (registeredFormatSettings.add(settings.id)) {
+                    call("registerFormatSettings", settings.id, settings.json);
+                }
+            }
+        }
         StringBuilder sb = new StringBuilder(funcName).append('(');
         for (Object arg: args) {
             if (sb.charAt(sb.length() - 1) != '(') sb.append(',');
@@ -133,13 +146,22 @@ public class TSServiceProcess {
     }
 
     public Object query(Object... filenameAndArgs) throws TSException {
+        return callEx("query", filenameAndArgs);
+    }
+
+    /**
+     * Calls a top-level function of nbts-services, configuring it first if needed. Errors
+     * (including a String returned by the function) are thrown as TSExceptions.
+     */
+    public Object callEx(String funcName, Object... args) throws TSException {
         if (configGen < TSPluginConfig.configGen) {
             configGen = TSPluginConfig.configGen;
             String libDir = TSPluginConfig.getLibDir();
             if (libDir.isEmpty()) {
                 configError = "TypeScript lib directory not set";
             } else {
-                Object res = call("configure", libDir, TSPluginConfig.getLocale());
+                Object res = call("configure", libDir, TSPluginConfig.getLocale(),
+                        TSPluginConfig.getHeapBudgetMB(), TSPluginConfig.getIdleMinutes());
                 configError = res instanceof String
                         ? "Failed to load TypeScript from " + libDir + "\n\n" + res
                         : null;
@@ -148,7 +170,7 @@ public class TSServiceProcess {
         if (configError != null) {
             throw new TSException(configError + "\n\nPlease check plugin configuration (context menu > \"TypeScript Setup...\")");
         }
-        Object res = call("query", filenameAndArgs);
+        Object res = call(funcName, args);
         if (res == TSException.class) {
             throw new TSException((procError != null ? procError : commError)
                 + "\n\nClose project and reopen to retry.");
@@ -163,6 +185,11 @@ public class TSServiceProcess {
         return commError == null;
     }
 
+    // Whether TypeScript could be loaded, as of the last callEx
+    boolean isConfigured() {
+        return configError == null;
+    }
+
     private class ErrorCaptureThread extends Thread {
         @Override
         public void run() {
@@ -15,19 +15,25 @@
  */
 package netbeanstypescript;
 
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.ImageIcon;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.netbeans.modules.csl.api.*;
 import org.netbeans.modules.csl.spi.ParserResult;
 import org.openide.filesystems.FileObject;
+import org.openide.util.RequestProcessor;
 
 /**
  *
@@ -35,23 +41,93 @@ import org.openide.filesystems.FileObject;
  */
 public class TSStructureScanner implements StructureScanner {
 
+    // Type text of an item, as of a project version
+    static class Details {
+        final String version;
+        final String type;
+
+        Details(String version, String type) {
+            this.version = version;
+            this.type = type;
+        }
+    }
+
+    // Overrides and overriding declarations of an item, as of a project version
+    static class Overrides {
+        final String version;
+        final Object overrides;
+        final Object overriddenBy;
+
+        Overrides(String version, JSONObject json) {
+            this.version = version;
+            overrides = json.get("overrides");
+            overriddenBy = json.get("overriddenBy");
+        }
+    }
+
     static class TSStructureItem extends TSElementHandle implements StructureItem {
-        String typeExtends;
-        String type;
-        Object overrides;
+        final JSONObject json; // kept to find unchanged subtrees on the next scan
+        final String typeExtends;
+        final String type;
 
-        FileObject fileObj;
-        TSStructureItem parent;
-        int numOfName;
+        // Not a strong reference, since lastStructure is keyed by the file
+        final Reference<FileObject> fileRef;
+        final TSStructureItem parent;
+        final int numOfName;
         List<TSStructureItem> children;
 
-        TSStructureItem(JSONObject item) {
-            super(new OffsetRange(((Number) item.get("start")).intValue(),
-                                  ((Number) item.get("end")).intValue()),
-                    item);
+        // Details are resolved separately from the skeleton, when the navigator shows the item.
+        // The navigator only reads getHtml again for a new item from a new scan, so the details
+        // shown never change; ones loaded later wait in loadedDetails for the next scan.
+        final boolean hasDetails;
+        final Details details;
+        volatile Details loadedDetails;
+        volatile String requestedVersion;
+        volatile Overrides overrides; // see getOverrides
+
+        TSStructureItem(Reference<FileObject> fileRef, TSStructureItem parent, int numOfName, JSONObject item,
+                Details details, Overrides overrides) {
+            super(offsetRange(item), item);
+            json = item;
             typeExtends = (String) item.get("extends");
             type = (String) item.get("type");
-            overrides = item.get("overrides");
+            this.fileRef = fileRef;
+            this.parent = parent;
+            this.numOfName = numOfName;
+            hasDetails = Boolean.TRUE.equals(item.get("hasDetails"));
+            this.details = loadedDetails = details;
+            this.overrides = overrides;
+        }
+
+        private static OffsetRange offsetRange(JSONObject item) {
+            return new OffsetRange(((Number) item.get("start")).intValue(), ((Number) item.get("end")).intValue());
+        }
+
+        private String typeText(Details d) {
+            return d != null && d.type != null ? d.type : type;
+        }
+
+        // Classes and interfaces have details for their subtypes, but no type text
+        private boolean hasTypeText() {
+            return hasDetails && kind != ElementKind.CLASS && kind != ElementKind.INTERFACE;
+        }
+
+        private void requestDetails() {
+            FileObject fo = fileRef.get();
+            CachedStructure cs = fo != null ? getCachedStructure(fo) : null;
+            if (cs == null || cs.detailsVersion.equals(requestedVersion)) {
+                return;
+            }
+            Details d = loadedDetails;
+            if (d == null || ! d.version.equals(cs.detailsVersion)) {
+                requestedVersion = cs.detailsVersion;
+                synchronized (pendingDetails) {
+                    if (pendingDetails.isEmpty()) {
+                        loadDetailsTask.schedule(DETAILS_BATCH_DELAY);
+                    }
+                    pendingDetails.add(this);
+                }
+            }
         }
 
         @Override
@@ -71,18 +147,22 @@ public class TSStructureScanner implements StructureScanner {
                 hf.appendText(typeExtends);
                 hf.type(false);
             }
+            String type = typeText(details);
             if (type != null) {
                 hf.appendText(" : ");
                 hf.type(true);
                 hf.appendText(type);
                 hf.type(false);
             }
+            if (hasTypeText()) {
+                requestDetails();
+            }
             return hf.getText();
         }
         @Override
         public ElementHandle getElementHandle() { return this; }
         @Override
-        public FileObject getFileObject() { return fileObj; }
+        public FileObject getFileObject() { return fileRef.get(); }
         @Override
         public String getMimeType() { return "text/typescript"; }
         @Override
@@ -117,31 +197,227 @@ public class TSStructureScanner implements StructureScanner {
         }
     }
 
-    private List<TSStructureItem> convertStructureItems(FileObject fileObj, TSStructureItem parent, Object arr) {
+    private static class CachedStructure {
+        final String version;
+        final String detailsVersion;
+        final List<TSStructureItem> items;
+
+        CachedStructure(String version, String detailsVersion, List<TSStructureItem> items) {
+            this.version = version;
+            this.detailsVersion = detailsVersion;
+            this.items = items;
+        }
+    }
+
+    // Last structure returned for each file, so an unchanged navigator doesn't need rebuilding
+    private static final Map<FileObject, CachedStructure> lastStructure = new WeakHashMap<>();
+
+    private static CachedStructure getCachedStructure(FileObject fo) {
+        synchronized (lastStructure) {
+            return lastStructure.get(fo);
+        }
+    }
+
+    // Subtrees that are unchanged since the last scan, offsets included, are reused as they are,
+    // unless they have details waiting to be shown. Other items take over the details of the
+    // item they replace, so the navigator doesn't blank them while new ones are loaded.
+    List<TSStructureItem> convertStructureItems(Reference<FileObject> fileRef, TSStructureItem parent, Object arr,
+            List<TSStructureItem> oldItems) {
         if (arr == null) {
             return Collections.emptyList();
         }
+        Map<String, TSStructureItem> oldByName = new HashMap<>();
+        for (TSStructureItem old: oldItems) {
+            oldByName.put(old.numOfName + ":" + old.name, old);
+        }
         List<TSStructureItem> items = new ArrayList<>();
         Map<String, Integer> nameCounts = new HashMap<>();
         for (JSONObject elem: (List<JSONObject>) arr) {
-            TSStructureItem item = new TSStructureItem(elem);
-            Integer numOfName = nameCounts.get(item.name);
+            String name = (String) elem.get("name");
+            Integer numOfName = nameCounts.get(name);
             if (numOfName == null) numOfName = 0;
-            nameCounts.put(item.name, numOfName + 1);
+            nameCounts.put(name, numOfName + 1);
 
-            item.fileObj = fileObj;
-            item.parent = parent;
-            item.numOfName = numOfName;
-            item.children = convertStructureItems(fileObj, item, elem.get("children"));
+            TSStructureItem old = oldByName.get(numOfName + ":" + name);
+            if (old != null && old.json.equals(elem) && ! hasUnshownDetails(old)) {
+                items.add(old);
+                continue;
+            }
+            TSStructureItem item = old != null
+                    ? new TSStructureItem(fileRef, parent, numOfName, elem, old.loadedDetails, old.overrides)
+                    : new TSStructureItem(fileRef, parent, numOfName, elem, null, null);
+            item.children = convertStructureItems(fileRef, item, elem.get("children"),
+                    old != null ? old.children : Collections.<TSStructureItem>emptyList());
             items.add(item);
         }
         return items;
     }
 
+    private static boolean hasUnshownDetails(TSStructureItem item) {
+        if (item.loadedDetails != item.details) {
+            return true;
+        }
+        for (TSStructureItem child: item.children) {
+            if (hasUnshownDetails(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The tree with new items for those with details waiting to be shown, and for their
+    // ancestors, so the navigator picks up the new text. Other subtrees are shared.
+    private static List<TSStructureItem> withLoadedDetails(List<TSStructureItem> items, TSStructureItem parent) {
+        List<TSStructureItem> result = items;
+        for (int i = 0; i < items.size(); i++) {
+            TSStructureItem item = items.get(i);
+            if (! hasUnshownDetails(item)) {
+                continue;
+            }
+            TSStructureItem copy = new TSStructureItem(item.fileRef, parent, item.numOfName, item.json,
+                    item.loadedDetails, item.overrides);
+            copy.children = withLoadedDetails(item.children, copy);
+            if (result == items) {
+                result = new ArrayList<>(items);
+            }
+            result.set(i, copy);
+        }
+        return result;
+    }
+
+    // Items the navigator has shown without current details. They're loaded in batches, off the
+    // EDT, and the file is then parsed again so the navigator shows them (see scan).
+    private static final int DETAILS_BATCH_DELAY = 50;
+    private static final List<TSStructureItem> pendingDetails = new ArrayList<>();
+    private static final RequestProcessor.Task loadDetailsTask =
+            new RequestProcessor("TypeScript navigator details").create(new Runnable() {
+        @Override
+        public void run() {
+            Map<FileObject, List<TSStructureItem>> byFile = new LinkedHashMap<>();
+            synchronized (pendingDetails) {
+                for (TSStructureItem item: pendingDetails) {
+                    FileObject fo = item.fileRef.get();
+                    if (fo != null) {
+                        List<TSStructureItem> batch = byFile.get(fo);
+                        if (batch == null) {
+                            byFile.put(fo, batch = new ArrayList<>());
+                        }
+                        batch.add(item);
+                    }
+                }
+                pendingDetails.clear();
+            }
+            for (Map.Entry<FileObject, List<TSStructureItem>> entry: byFile.entrySet()) {
+                if (loadDetails(entry.getKey(), entry.getValue())) {
+                    TSParser.invalidate(entry.getKey());
+                }
+            }
+        }
+    });
+
+    // Returns whether any of the items would now show different text
+    private static boolean loadDetails(FileObject fo, List<TSStructureItem> batch) {
+        JSONArray starts = new JSONArray();
+        JSONArray names = new JSONArray();
+        for (TSStructureItem item: batch) {
+            starts.add(item.textSpan.getStart());
+            names.add(item.name);
+        }
+        JSONObject res = (JSONObject) TSService.call("getStructureTypes", fo, starts, names);
+        if (res == null) {
+            return false;
+        }
+        String version = (String) res.get("version");
+        List<String> types = (List<String>) res.get("types");
+        boolean changed = false;
+        for (int i = 0; i < batch.size(); i++) {
+            TSStructureItem item = batch.get(i);
+            Details d = new Details(version, types.get(i));
+            item.loadedDetails = d;
+            changed |= ! Objects.equals(item.typeText(d), item.typeText(item.details));
+        }
+        return changed;
+    }
+
+    // Overrides are loaded when CSL asks for them, which it does for every item after each parse,
+    // so they're loaded for all the items of the file's current tree at once
+    static Overrides getOverrides(TSStructureItem item) {
+        FileObject fo = item.fileRef.get();
+        CachedStructure cs = fo != null ? getCachedStructure(fo) : null;
+        if (! item.hasDetails || cs == null) {
+            return null;
+        }
+        Overrides o = item.overrides;
+        if (o != null && o.version.equals(cs.detailsVersion)) {
+            return o;
+        }
+        List<TSStructureItem> batch = new ArrayList<>();
+        collectWithoutOverrides(cs.items, cs.detailsVersion, batch);
+        boolean inTree = false;
+        for (TSStructureItem other: batch) {
+            inTree |= other == item;
+        }
+        if (! inTree) {
+            batch.add(item);
+        }
+        JSONArray starts = new JSONArray();
+        JSONArray names = new JSONArray();
+        for (TSStructureItem other: batch) {
+            starts.add(other.textSpan.getStart());
+            names.add(other.name);
+        }
+        JSONObject res = (JSONObject) TSService.call("getStructureOverrides", fo, starts, names);
+        if (res == null) {
+            return null;
+        }
+        String version = (String) res.get("version");
+        List<JSONObject> arr = (List<JSONObject>) res.get("overrides");
+        for (int i = 0; i < batch.size(); i++) {
+            JSONObject json = arr.get(i);
+            batch.get(i).overrides = new Overrides(version, json != null ? json : new JSONObject());
+        }
+        return item.overrides;
+    }
+
+    private static void collectWithoutOverrides(List<TSStructureItem> items, String version,
+            List<TSStructureItem> result) {
+        for (TSStructureItem item: items) {
+            Overrides o = item.overrides;
+            if (item.hasDetails && (o == null || ! o.version.equals(version))) {
+                result.add(item);
+            }
+            collectWithoutOverrides(item.children, version, result);
+        }
+    }
+
+    // Only the skeleton is returned here; see TSStructureItem.details and getOverrides
     @Override
     public List<? extends StructureItem> scan(ParserResult pr) {
         FileObject fo = pr.getSnapshot().getSource().getFileObject();
-        return convertStructureItems(fo, null, TSService.call("getStructureItems", fo));
+        CachedStructure last = getCachedStructure(fo);
+        JSONObject res = (JSONObject) TSService.call("getStructureItems", fo,
+                last != null ? last.version : null);
+        if (res == null) {
+            return Collections.emptyList();
+        }
+        Object arr = res.get("items");
+        String version = (String) res.get("version");
+        String detailsVersion = (String) res.get("detailsVersion");
+        List<TSStructureItem> items;
+        if (arr == null && last != null) {
+            // The server says the skeleton we have is still current
+            items = withLoadedDetails(last.items, null);
+            if (items == last.items && detailsVersion.equals(last.detailsVersion)) {
+                return items;
+            }
+        } else {
+            items = convertStructureItems(new WeakReference<>(fo), null, arr,
+                    last != null ? last.items : Collections.<TSStructureItem>emptyList());
+        }
+        synchronized (lastStructure) {
+            lastStructure.put(fo, new CachedStructure(version, detailsVersion, items));
+        }
+        return items;
     }
 
     private final Pattern editorFolds = Pattern.compile("</?editor-fold\\b.*\\s*");